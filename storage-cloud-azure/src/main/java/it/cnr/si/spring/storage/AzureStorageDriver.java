@@ -17,23 +17,40 @@
 
 package it.cnr.si.spring.storage;
 
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageLocation;
 import com.microsoft.azure.storage.blob.*;
 import it.cnr.si.spring.storage.config.AzureStorageConfigurationProperties;
 import it.cnr.si.spring.storage.config.StoragePropertyNames;
+import it.cnr.si.util.DaemonThreadFactory;
+import it.cnr.si.util.LimitedInputStream;
 import it.cnr.si.util.MetadataEncodingUtils;
 
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.http.auth.UsernamePasswordCredentials;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 /**
@@ -42,13 +59,60 @@ import java.util.stream.StreamSupport;
 public class AzureStorageDriver implements StorageDriver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AzureStorageDriver.class);
+    private static final long MAX_BUFFERED_RANGE = 64L * 1024 * 1024;
+    private static final long COPY_POLL_INTERVAL = 100, MAX_COPY_POLL_INTERVAL = 5000;
 
     private CloudBlobContainer cloudBlobContainer;
     private AzureStorageConfigurationProperties azureStorageConfigurationProperties;
+    /**
+     * runs the blob requests issued in parallel, the 8.x client has no batch API
+     */
+    private ExecutorService executorService;
+    /**
+     * keys of the directories found so far with their expiry, least recently used evicted past directoryCacheSize
+     */
+    private final Map<String, Long> directoryCache;
+    private final long directoryCacheTtlMillis;
 
     public AzureStorageDriver(CloudBlobContainer cloudBlobContainer, AzureStorageConfigurationProperties azureStorageConfigurationProperties) {
         this.cloudBlobContainer = cloudBlobContainer;
         this.azureStorageConfigurationProperties = azureStorageConfigurationProperties;
+        /*le codifiche dei nomi configurati e di quelli CMIS entrano per prime nella cache di MetadataEncodingUtils*/
+        Stream.concat(
+                Optional.ofNullable(azureStorageConfigurationProperties.getMetadataKeys())
+                        .map(Map::keySet)
+                        .map(Set::stream)
+                        .orElseGet(Stream::empty),
+                Arrays.stream(StoragePropertyNames.values()).map(StoragePropertyNames::value))
+                .forEach(MetadataEncodingUtils::encodeKey);
+        this.executorService = Executors.newFixedThreadPool(
+                Math.max(1, azureStorageConfigurationProperties.getParallelism()), new DaemonThreadFactory("azure-storage-"));
+        final int directoryCacheSize = azureStorageConfigurationProperties.getDirectoryCacheSize();
+        this.directoryCache = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > directoryCacheSize;
+            }
+        });
+        this.directoryCacheTtlMillis = TimeUnit.SECONDS.toMillis(azureStorageConfigurationProperties.getDirectoryCacheTtl());
+    }
+
+    /**
+     * a directory emptied or deleted by another client stops being answered by the cache once expired
+     */
+    private boolean isCachedDirectory(String key) {
+        return Optional.ofNullable(directoryCache.get(key))
+                .filter(expiresAt -> {
+                    if (expiresAt > System.currentTimeMillis())
+                        return true;
+                    directoryCache.remove(key, expiresAt);
+                    return false;
+                })
+                .isPresent();
+    }
+
+    private void cacheDirectory(String key) {
+        directoryCache.put(key, System.currentTimeMillis() + directoryCacheTtlMillis);
     }
 
     private HashMap<String, String> putUserMetadata(Map<String, Object> metadata) {
@@ -61,19 +125,24 @@ public class AzureStorageDriver implements StorageDriver {
                                 String b64EncodedKey = MetadataEncodingUtils.encodeKey(entry.getKey());
                                 if (entry.getKey().equals(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value())) {
                                     String base64EncodedValues = MetadataEncodingUtils
-                                            .encodeValues((List<String>) entryValue);
+                                            .encodeValues((List<String>) entryValue, azureStorageConfigurationProperties.getMetadataChecksum());
                                     m.put(b64EncodedKey, base64EncodedValues);
                                 } else {
                                     String base64EncodedValue = String.valueOf(entry.getValue());
-                                    m.put(b64EncodedKey, MetadataEncodingUtils.encodeValue(base64EncodedValue));
+                                    m.put(b64EncodedKey, MetadataEncodingUtils.encodeValue(base64EncodedValue,
+                                            azureStorageConfigurationProperties.getMetadataChecksum()));
                                 }
                             });
                 }, HashMap::putAll);
     }
 
     private Map<String, Object> getUserMetadata(CloudBlob blockBlobReference) {
+        return getUserMetadata(blockBlobReference, blockBlobReference.getProperties().getLength());
+    }
+
+    private Map<String, Object> getUserMetadata(CloudBlob blockBlobReference, long length) {
         Map<String, Object> result = new HashMap<String, Object>();
-        result.put(StoragePropertyNames.CONTENT_STREAM_LENGTH.value(), BigInteger.valueOf(blockBlobReference.getProperties().getLength()));
+        result.put(StoragePropertyNames.CONTENT_STREAM_LENGTH.value(), BigInteger.valueOf(length));
         result.put(StoragePropertyNames.CONTENT_STREAM_MIME_TYPE.value(), blockBlobReference.getProperties().getContentType());
         result.put(StoragePropertyNames.ALFCMIS_NODEREF.value(), blockBlobReference.getName());
         result.put(StoragePropertyNames.ID.value(), blockBlobReference.getName());
@@ -85,21 +154,12 @@ public class AzureStorageDriver implements StorageDriver {
                         .orElse(blockBlobReference.getName())
         );
         result.put(StoragePropertyNames.BASE_TYPE_ID.value(),
-                Optional.of(blockBlobReference.getProperties().getLength())
+                Optional.of(length)
                         .filter(aLong -> aLong > 0)
                         .map(aLong -> StoragePropertyNames.CMIS_DOCUMENT.value())
                         .orElse(StoragePropertyNames.CMIS_FOLDER.value()));
 
-        blockBlobReference.getMetadata().forEach((b64EncodedKey, b64EncodedValue) -> {
-            String key = MetadataEncodingUtils.decodeKey(b64EncodedKey);
-            if (key.equals(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value())) {
-                result.put(key, MetadataEncodingUtils.decodeValues(b64EncodedValue));
-            } else {
-                result.put(key, MetadataEncodingUtils.decodeValue(b64EncodedValue));
-            }
-        });
-
-        return result;
+        return new AzureUserMetadata(StorageMetadata.of(result), blockBlobReference.getMetadata());
     }
 
 
@@ -155,6 +215,15 @@ public class AzureStorageDriver implements StorageDriver {
         }
     }
 
+    /**
+     * Streams above the single put threshold are uploaded as blocks, parallelism at a time
+     */
+    private BlobRequestOptions getUploadRequestOptions() {
+        BlobRequestOptions blobRequestOptions = new BlobRequestOptions();
+        blobRequestOptions.setConcurrentRequestCount(Math.max(1, azureStorageConfigurationProperties.getParallelism()));
+        return blobRequestOptions;
+    }
+
     @Override
     public StorageObject createDocument(InputStream inputStream, String contentType, Map<String, Object> metadataProperties,
                                         StorageObject parentObject, String path, boolean makeVersionable, Permission... permissions) {
@@ -177,31 +246,42 @@ public class AzureStorageDriver implements StorageDriver {
         try {
             CloudBlockBlob blockBlobReference = cloudBlobContainer
                     .getBlockBlobReference(key);
-
-            blockBlobReference
-                    .upload(inputStream, -1);
+            /*content type e metadati viaggiano con l'upload, la risposta non riporta la lunghezza: si contano i byte inviati*/
             blockBlobReference.getProperties().setContentType(cleanupContentType( contentType));
-            blockBlobReference.uploadProperties();
             blockBlobReference.setMetadata(putUserMetadata(metadataProperties));
-            blockBlobReference.uploadMetadata();
-            return new StorageObject(key, key, getUserMetadata(blockBlobReference));
+            CountingInputStream content = new CountingInputStream(inputStream);
+            blockBlobReference
+                    .upload(content, -1, null, getUploadRequestOptions(), null);
+            return new StorageObject(key, key, getUserMetadata(blockBlobReference, content.getByteCount()));
 
         } catch (URISyntaxException | IOException | com.microsoft.azure.storage.StorageException e) {
             throw new StorageException(StorageException.Type.GENERIC, e);
         }
     }
 
+    /**
+     * Directories are virtual, one exists while at least a blob is listed under its prefix:
+     * known directories are answered by the cache, the others by a listing of a single item
+     */
     private CloudBlobDirectory getClouBlobDirectory(StorageObject storageObject) throws com.microsoft.azure.storage.StorageException {
+        final String key = sanitazeDirectoryPath(storageObject.getKey());
         try {
-            Optional<CloudBlobDirectory> storageDirectory = cloudBlobContainer.listBlobsSegmented(storageObject.getKey())
-                    .getResults()
-                    .stream()
-                    .filter(CloudBlobDirectory.class::isInstance)
-                    .filter(c -> (getName((CloudBlobDirectory) c).equals(storageObject.getPath())))
-                    .findFirst()
-                    .map(CloudBlobDirectory.class::cast);
-            if (storageDirectory.isPresent())
-                return storageDirectory.get();
+            if (isCachedDirectory(key) ||
+                    cloudBlobContainer.listBlobsSegmented(key.concat(SUFFIX),
+                            false,
+                            EnumSet.noneOf(BlobListingDetails.class),
+                            1,
+                            null /* continuationToken */,
+                            null /* options */,
+                            null /* opContext */)
+                            .getResults()
+                            .iterator()
+                            .hasNext()) {
+                cacheDirectory(key);
+                return cloudBlobContainer.getDirectoryReference(key);
+            }
+        } catch (URISyntaxException e) {
+            throw new StorageException(StorageException.Type.GENERIC, e);
         } catch (com.microsoft.azure.storage.StorageException e) {
             if (e instanceof com.microsoft.azure.storage.StorageException) {
                 if (((com.microsoft.azure.storage.StorageException) e).getHttpStatusCode() == 404) {
@@ -294,9 +374,10 @@ public class AzureStorageDriver implements StorageDriver {
                     .getBlobReferenceFromServer(key);
 
             HashMap<String, String> metadataSource = blockBlobReference.getMetadata();
+            CountingInputStream content = new CountingInputStream(inputStream);
             blockBlobReference
-                    .upload(inputStream, -1);
-            return new StorageObject(key, key, getUserMetadata(blockBlobReference));
+                    .upload(content, -1);
+            return new StorageObject(key, key, getUserMetadata(blockBlobReference, content.getByteCount()));
 
         } catch (URISyntaxException | IOException | com.microsoft.azure.storage.StorageException e) {
             throw new StorageException(StorageException.Type.GENERIC, e);
@@ -321,6 +402,31 @@ public class AzureStorageDriver implements StorageDriver {
 
     }
 
+    /**
+     * Ranges up to 64 MB are read with a single Get Blob request, longer ones with a BlobInputStream positioned at offset.
+     */
+    @Override
+    public InputStream getInputStream(String key, long offset, long length) {
+        String blobName = Optional.ofNullable(key)
+                .map(s -> s.indexOf(SUFFIX) == 0 ? s.substring(1) : s)
+                .orElseThrow(() -> new StorageException(StorageException.Type.NOT_FOUND, "Key is null"));
+        if (length <= 0)
+            return new ByteArrayInputStream(new byte[0]);
+        try {
+            CloudBlockBlob blockBlobReference = cloudBlobContainer.getBlockBlobReference(blobName);
+            if (length <= MAX_BUFFERED_RANGE) {
+                byte[] buffer = new byte[(int) length];
+                int read = blockBlobReference.downloadRangeToByteArray(offset, length, buffer, 0);
+                return new ByteArrayInputStream(buffer, 0, read);
+            }
+            BlobInputStream blobInputStream = blockBlobReference.openInputStream();
+            blobInputStream.skip(offset);
+            return new LimitedInputStream(blobInputStream, length);
+        } catch (URISyntaxException | IOException | com.microsoft.azure.storage.StorageException e) {
+            throw new StorageException(StorageException.Type.GENERIC, e);
+        }
+    }
+
     @Override
     public InputStream getInputStream(String key, String versionId) {
         return getInputStream(key);
@@ -340,6 +446,7 @@ public class AzureStorageDriver implements StorageDriver {
         try {
             CloudBlob blobReference = cloudBlobContainer.getBlobReferenceFromServer(key);
             blobReference.delete(DeleteSnapshotsOption.INCLUDE_SNAPSHOTS, null /* accessCondition */, null /* options */, null /* opContext */);
+            evictDirectories(key);
         } catch (URISyntaxException | com.microsoft.azure.storage.StorageException e) {
             if (e instanceof com.microsoft.azure.storage.StorageException) {
                 if (((com.microsoft.azure.storage.StorageException) e).getHttpStatusCode() == 404) {
@@ -352,6 +459,29 @@ public class AzureStorageDriver implements StorageDriver {
         return true;
     }
 
+    @Override
+    public Map<String, Boolean> deleteAll(Collection<String> keys) {
+        Map<String, CompletableFuture<Boolean>> deletions = keys.stream()
+                .distinct()
+                .collect(LinkedHashMap::new, (m, key) -> m.put(key, CompletableFuture
+                        .supplyAsync(() -> delete(key), executorService)
+                        .exceptionally(throwable -> {
+                            LOGGER.warn("item {} not deleted", key, throwable);
+                            return false;
+                        })), Map::putAll);
+        return deletions.entrySet().stream()
+                .collect(LinkedHashMap::new, (m, entry) -> m.put(entry.getKey(), entry.getValue().join()), Map::putAll);
+    }
+
+    /**
+     * the directories containing key may have become empty, the ones below it no longer exist
+     */
+    private void evictDirectories(String key) {
+        directoryCache.keySet().removeIf(directory -> directory.equals(key) ||
+                key.startsWith(directory.concat(SUFFIX)) ||
+                directory.startsWith(key.concat(SUFFIX)));
+    }
+
     private String getName(CloudBlobDirectory cloudBlobDirectory) {
         Optional<String> nameOpt = Optional.ofNullable(cloudBlobDirectory).map(dir -> dir.getPrefix()).
                 filter(s -> (!s.isEmpty())).map(s -> s.substring(0, s.length() - 1));
@@ -370,17 +500,23 @@ public class AzureStorageDriver implements StorageDriver {
                 .orElse(key);
 
         try {
-            StorageObject checkDir = new StorageObject(key, key, Collections.emptyMap());
-            if (isDirectory(checkDir)) {
-                CloudBlobDirectory cloudBlobDirectory = getClouBlobDirectory(checkDir);
-                return new StorageObject(
-                        getName(cloudBlobDirectory),
-                        getName(cloudBlobDirectory),
-                        getUserMetadata(cloudBlobDirectory));
+            /*prima la HEAD del blob, poi la ricerca della directory*/
+            if (!isCachedDirectory(key)) {
+                try {
+                    CloudBlob blobReference = cloudBlobContainer
+                            .getBlobReferenceFromServer(key);
+                    return new StorageObject(key, key, getUserMetadata(blobReference));
+                } catch (com.microsoft.azure.storage.StorageException e) {
+                    if (e.getHttpStatusCode() != 404)
+                        throw e;
+                }
             }
-            CloudBlob blobReference = cloudBlobContainer
-                    .getBlobReferenceFromServer(key);
-            return new StorageObject(key, key, getUserMetadata(blobReference));
+            return Optional.ofNullable(getClouBlobDirectory(new StorageObject(key, key, Collections.emptyMap())))
+                    .map(cloudBlobDirectory -> new StorageObject(
+                            getName(cloudBlobDirectory),
+                            getName(cloudBlobDirectory),
+                            getUserMetadata(cloudBlobDirectory)))
+                    .orElse(null);
         } catch (URISyntaxException | com.microsoft.azure.storage.StorageException e) {
             if (e instanceof com.microsoft.azure.storage.StorageException) {
                 if (((com.microsoft.azure.storage.StorageException) e).getHttpStatusCode() == 404) {
@@ -423,16 +559,10 @@ public class AzureStorageDriver implements StorageDriver {
             return l.stream()
                     .filter(CloudBlockBlob.class::isInstance)
                     .map(CloudBlockBlob.class::cast)
-                    .map(cloudBlockBlob -> {
-                        try {
-                            return new StorageObject(
-                                    cloudBlockBlob.getName(),
-                                    cloudBlockBlob.getName(),
-                                    getUserMetadata(cloudBlobContainer.getBlobReferenceFromServer(cloudBlockBlob.getName())));
-                        } catch (URISyntaxException | com.microsoft.azure.storage.StorageException e) {
-                            throw new StorageException(StorageException.Type.GENERIC, e);
-                        }
-                    })
+                    .map(cloudBlockBlob -> new StorageObject(
+                            cloudBlockBlob.getName(),
+                            cloudBlockBlob.getName(),
+                            getUserMetadata(cloudBlockBlob)))
                     .collect(Collectors.toList());
         }
         return new ArrayList<StorageObject>();
@@ -471,18 +601,43 @@ public class AzureStorageDriver implements StorageDriver {
     }
     @Override
     public List<StorageObject> getChildren(String key) {
+        return streamChildren(key).collect(Collectors.toList());
+    }
 
-            key = Optional.ofNullable(key)
-                    .filter(s -> !s.equals(SUFFIX) && s.startsWith(SUFFIX))
-                    .map(s -> s.substring(1))
-                    .orElse(key).concat(SUFFIX);
-                try {
-                   return getChildren(cloudBlobContainer.listBlobsSegmented(key).getResults());
-                } catch (com.microsoft.azure.storage.StorageException e) {
-                    throw new StorageException(StorageException.Type.GENERIC, e);
-                }
-
+    /**
+     * The continuation token is the NextMarker of the blob listing, which carries properties and metadata of every blob.
+     */
+    @Override
+    public StoragePage getChildrenPage(String key, int pageSize, String continuationToken) {
+        String prefix = Optional.ofNullable(key)
+                .filter(s -> !s.equals(SUFFIX) && s.startsWith(SUFFIX))
+                .map(s -> s.substring(1))
+                .orElse(key).concat(SUFFIX);
+        try {
+            ResultSegment<ListBlobItem> resultSegment = cloudBlobContainer.listBlobsSegmented(prefix,
+                    false,
+                    EnumSet.of(BlobListingDetails.METADATA),
+                    pageSize,
+                    Optional.ofNullable(continuationToken).map(this::getResultContinuation).orElse(null),
+                    null /* options */,
+                    null /* opContext */);
+            return new StoragePage(getChildren(resultSegment.getResults()),
+                    Optional.ofNullable(resultSegment.getContinuationToken())
+                            .filter(ResultContinuation::hasContinuation)
+                            .map(ResultContinuation::getNextMarker)
+                            .orElse(null));
+        } catch (com.microsoft.azure.storage.StorageException e) {
+            throw new StorageException(StorageException.Type.GENERIC, e);
         }
+    }
+
+    private ResultContinuation getResultContinuation(String nextMarker) {
+        ResultContinuation resultContinuation = new ResultContinuation();
+        resultContinuation.setContinuationType(ResultContinuationType.BLOB);
+        resultContinuation.setTargetLocation(StorageLocation.PRIMARY);
+        resultContinuation.setNextMarker(nextMarker);
+        return resultContinuation;
+    }
 
 
 /*
@@ -526,42 +681,31 @@ public class AzureStorageDriver implements StorageDriver {
         if (directory == null || directory.getPath().isEmpty())
             return;
         if (isDirectory(directory)) {
-            try {
-                CloudBlobDirectory sourcedir = getClouBlobDirectory(directory);
-                getSubDirectory(sourcedir).forEach(s -> {
-                    LOGGER.debug("sub Directory:" + s.getPrefix());
-                    StorageObject sourceSub = getObjectByPath(s.getPrefix(), true);
-                    deleteDirectory(sourceSub);
-                });
-                //copia i file
-                List<StorageObject> l = getChildren(directory.getKey());
-                StorageObject currentSo;
-                Optional.ofNullable(l).map(List::stream)
-                        .ifPresent(ob -> ob.forEach(so -> {
-                            try {
-                                delete(so.getKey());
-                                LOGGER.debug("Source Key:" + so.getKey() + " dir:" + so.getKey());
-                            } catch (StorageException e) {
-                                throw new StorageException(StorageException.Type.GENERIC, "Delete Directory errore in copia/delete file" + so.getKey());
-                            }
-                        }));
-
-            } catch (StorageException | com.microsoft.azure.storage.StorageException e) {
-                throw new StorageException(StorageException.Type.GENERIC, "Delete Directory errore cancellazione file", e);
-            }
+            final String prefix = sanitazeDirectoryPath(directory.getKey());
+            deleteBlobs(listBlobs(prefix).stream()
+                    .map(CloudBlob::getName)
+                    .collect(Collectors.toList()));
+            evictDirectories(prefix);
         }
     }
 
-    private List<CloudBlobDirectory> getSubDirectory(CloudBlobDirectory directory) {
-        try {
-            return StreamSupport.stream(directory.listBlobs().spliterator(), false)
-                    .filter(CloudBlobDirectory.class::isInstance)
-                    .map(sc -> (CloudBlobDirectory) sc)
-                    .collect(Collectors.toList());
-        } catch (com.microsoft.azure.storage.StorageException | URISyntaxException e) {
-            LOGGER.error("getSubDirectory:" + directory.getPrefix(), e);
-            throw new StorageException(StorageException.Type.GENERIC, e);
-        }
+    /**
+     * every blob below prefix, the flat listing follows the continuation tokens by itself
+     */
+    private List<CloudBlob> listBlobs(String prefix) {
+        return StreamSupport.stream(cloudBlobContainer.listBlobs(prefix.concat(SUFFIX), true).spliterator(), false)
+                .filter(CloudBlob.class::isInstance)
+                .map(CloudBlob.class::cast)
+                .collect(Collectors.toList());
+    }
+
+    private void deleteBlobs(List<String> keys) {
+        List<String> notDeleted = deleteAll(keys).entrySet().stream()
+                .filter(entry -> !entry.getValue())
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        if (!notDeleted.isEmpty())
+            throw new StorageException(StorageException.Type.GENERIC, "Delete Directory errore cancellazione file " + notDeleted);
     }
 
     private String sanitazeDirectoryPath(String path) {
@@ -617,47 +761,101 @@ public class AzureStorageDriver implements StorageDriver {
             throw new StorageException(StorageException.Type.GENERIC, "Rename Directory->The parent Directory for Dest and Source is different:" + target.getPath() + "," + source.getPath());
         if (source.getPath().equalsIgnoreCase(target.getPath()))
             return;
-        copyDirectory(source, target);
-        deleteDirectory(source);
-
+        deleteBlobs(copyDirectory(source, target));
+        evictDirectories(sanitazeDirectoryPath(source.getKey()));
+    }
+
+    /**
+     * The tree is listed once, then every blob is copied server side keeping its relative path,
+     * parallelism copies at a time, each one awaited until completed.
+     * No copy is started after one has failed; on any failure, interruption included,
+     * the copies in flight are awaited and the completed ones deleted.
+     *
+     * @return keys of the source blobs, all copied
+     */
+    private List<String> copyDirectory(StorageObject source, StorageObject target) {
+        if (source.getPath().equalsIgnoreCase(target.getPath()) || !isDirectory(source))
+            return Collections.emptyList();
+        final String sourcePrefix = sanitazeDirectoryPath(source.getKey()),
+                targetPrefix = sanitazeDirectoryPath(target.getPath());
+        final Semaphore window = new Semaphore(Math.max(1, azureStorageConfigurationProperties.getParallelism()));
+        final AtomicBoolean failed = new AtomicBoolean();
+        final Map<String, CompletableFuture<String>> copies = new LinkedHashMap<>();
+        try {
+            for (CloudBlob sourceBlob : listBlobs(sourcePrefix)) {
+                final String targetKey = targetPrefix.concat(sourceBlob.getName().substring(sourcePrefix.length()));
+                window.acquire();
+                if (failed.get()) {
+                    window.release();
+                    break;
+                }
+                copies.put(sourceBlob.getName(), CompletableFuture
+                        .supplyAsync(() -> copyBlob(sourceBlob, targetKey), executorService)
+                        .whenComplete((key, throwable) -> {
+                            if (throwable != null)
+                                failed.set(true);
+                            window.release();
+                        }));
+            }
+            CompletableFuture.allOf(copies.values().toArray(new CompletableFuture[copies.size()])).join();
+            return new ArrayList<>(copies.keySet());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteCopies(copies.values());
+            throw new StorageException(StorageException.Type.GENERIC, "Rename Directory interrotta", e);
+        } catch (CompletionException e) {
+            deleteCopies(copies.values());
+            throw new StorageException(StorageException.Type.GENERIC, "Rename Directory errore in copia file", e.getCause());
+        } catch (RuntimeException e) {
+            deleteCopies(copies.values());
+            throw e;
+        }
+    }
 
+    /**
+     * waits for the copies in flight, then deletes the targets of the completed ones
+     */
+    private void deleteCopies(Collection<CompletableFuture<String>> copies) {
+        CompletableFuture.allOf(copies.toArray(new CompletableFuture[copies.size()]))
+                .exceptionally(throwable -> null)
+                .join();
+        deleteAll(copies.stream()
+                .filter(copy -> !copy.isCompletedExceptionally())
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList()));
     }
 
-    private void copyDirectory(StorageObject source, StorageObject target) {
-        if (source.getPath().equalsIgnoreCase(target.getPath()))
-            return;
+    private String copyBlob(CloudBlob sourceBlob, String targetKey) {
+        try {
+            CloudBlob targetBlob = cloudBlobContainer.getBlockBlobReference(targetKey);
+            targetBlob.startCopy(sourceBlob.getUri());
+            waitForCopy(targetBlob);
+            return targetKey;
+        } catch (URISyntaxException | com.microsoft.azure.storage.StorageException e) {
+            throw new StorageException(StorageException.Type.GENERIC, "Copy of " + sourceBlob.getName() + " failed", e);
+        }
+    }
 
-        if (isDirectory(source)) {
+    /**
+     * polls the copy state, with an increasing interval, until the server side copy leaves PENDING
+     */
+    private void waitForCopy(CloudBlob blob) throws com.microsoft.azure.storage.StorageException {
+        long interval = COPY_POLL_INTERVAL;
+        if (blob.getCopyState() == null)
+            blob.downloadAttributes();
+        while (blob.getCopyState().getStatus() == CopyStatus.PENDING) {
             try {
-                CloudBlobDirectory sourcedir = getClouBlobDirectory(source);
-                getSubDirectory(sourcedir).forEach(s -> {
-                    LOGGER.debug(s.getPrefix());
-                    StorageObject targetSub = getObjectByPath(target.getPath().concat(SUFFIX).concat(getDirectoryName((CloudBlobDirectory) s)), true);
-                    StorageObject sourceSub = getObjectByPath(s.getPrefix(), true);
-                    LOGGER.debug(targetSub.getPath(), targetSub);
-                    copyDirectory(sourceSub, targetSub);
-
-                });
-                //copy files
-                List<StorageObject> l = getChildren(source.getKey());
-                StorageObject currentSo;
-                Optional.ofNullable(l).map(List::stream)
-                        .ifPresent(ob -> ob.forEach(so -> {
-                            try {
-                                copyNode(so, target);
-                                LOGGER.debug("Source Key:" + so.getKey() + " dir:" + target.getPath());
-                            } catch (StorageException e) {
-                                throw new StorageException(StorageException.Type.GENERIC, "Rename Directory  errore in copia/delete file" + so.getKey());
-                            }
-                        }));
-
-            } catch (StorageException | com.microsoft.azure.storage.StorageException e) {
-                deleteDirectory(target);
-                throw new StorageException(StorageException.Type.GENERIC, "Rename Directory errore in copia/delete file");
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException(StorageException.Type.GENERIC, "Copy of " + blob.getName() + " interrupted", e);
             }
+            interval = Math.min(interval * 2, MAX_COPY_POLL_INTERVAL);
+            blob.downloadAttributes();
         }
-
-
+        if (blob.getCopyState().getStatus() != CopyStatus.SUCCESS)
+            throw new StorageException(StorageException.Type.GENERIC,
+                    "Copy of " + blob.getName() + " " + blob.getCopyState().getStatus() + ": " + blob.getCopyState().getStatusDescription());
     }
 
     @Override
@@ -672,6 +870,7 @@ public class AzureStorageDriver implements StorageDriver {
             CloudBlobDirectory folder = cloudBlobContainer.getDirectoryReference(target.getPath());
             CloudBlockBlob newBlob = folder.getBlockBlobReference(source.getPropertyValue(StoragePropertyNames.NAME.value()));
             newBlob.startCopy(blobReference.getUri());
+            waitForCopy(newBlob);
         } catch (URISyntaxException | com.microsoft.azure.storage.StorageException e) {
             throw new StorageException(StorageException.Type.GENERIC, e);
         }
@@ -708,5 +907,13 @@ public class AzureStorageDriver implements StorageDriver {
         LOGGER.debug("init {}...", AzureStorageDriver.class.getSimpleName());
     }
 
+    /**
+     * stops the threads of the parallel requests, the ones in flight are completed
+     */
+    @PreDestroy
+    public void destroy() {
+        executorService.shutdown();
+    }
+
 
 }
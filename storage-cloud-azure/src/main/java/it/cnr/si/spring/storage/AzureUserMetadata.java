@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage;
+
+import it.cnr.si.spring.storage.config.StoragePropertyNames;
+import it.cnr.si.util.MetadataEncodingUtils;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Properties of a blob: the user metadata stay encoded until they are read one by one,
+ * listing them all decodes every entry once.
+ */
+class AzureUserMetadata extends AbstractMap<String, Object> implements Serializable {
+    private final Map<String, Object> properties;
+    private final Map<String, String> encodedMetadata;
+    private final transient ConcurrentMap<String, Object> decodedMetadata = new ConcurrentHashMap<String, Object>();
+    private transient volatile Map<String, Object> metadata;
+
+    /**
+     * @param properties      properties of the blob itself
+     * @param encodedMetadata user metadata of the blob, they take precedence over the properties
+     */
+    AzureUserMetadata(Map<String, Object> properties, Map<String, String> encodedMetadata) {
+        this.properties = properties;
+        this.encodedMetadata = encodedMetadata;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String))
+            return null;
+        return Optional.ofNullable(decodedMetadata.get(key))
+                .orElseGet(() -> {
+                    final String encodedKey = MetadataEncodingUtils.encodeKey((String) key);
+                    if (!encodedMetadata.containsKey(encodedKey))
+                        return properties.get(key);
+                    return Optional.ofNullable(decodeValue((String) key, encodedMetadata.get(encodedKey)))
+                            .map(value -> {
+                                decodedMetadata.putIfAbsent((String) key, value);
+                                return value;
+                            })
+                            .orElse(null);
+                });
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String &&
+                (properties.containsKey(key) || encodedMetadata.containsKey(MetadataEncodingUtils.encodeKey((String) key)));
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return getMetadata().entrySet();
+    }
+
+    private Map<String, Object> getMetadata() {
+        Map<String, Object> result = metadata;
+        if (result == null) {
+            result = new HashMap<String, Object>(properties);
+            for (Map.Entry<String, String> entry : encodedMetadata.entrySet()) {
+                final String key = MetadataEncodingUtils.decodeKey(entry.getKey());
+                result.put(key, decodeValue(key, entry.getValue()));
+            }
+            metadata = result = Collections.unmodifiableMap(result);
+        }
+        return result;
+    }
+
+    private static Object decodeValue(String key, String value) {
+        if (key.equals(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value()))
+            return MetadataEncodingUtils.decodeValues(value);
+        return MetadataEncodingUtils.decodeValue(value);
+    }
+
+    private Object writeReplace() {
+        return new HashMap<String, Object>(getMetadata());
+    }
+}
@@ -18,6 +18,7 @@
 package it.cnr.si.spring.storage.config;
 
 import it.cnr.si.spring.storage.condition.StorageDriverIsAzure;
+import it.cnr.si.util.MetadataEncodingUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
@@ -40,6 +41,18 @@ public class AzureStorageConfigurationProperties {
     @Value("#{${cnr.storage.metadataKeys}}")
     private Map<String, String> metadataKeys;
 
+    @Value("${cnr.storage.azure.parallelism:16}")
+    private int parallelism;
+
+    @Value("${cnr.storage.azure.directoryCacheSize:10000}")
+    private int directoryCacheSize;
+
+    @Value("${cnr.storage.pathCache.ttl:60}")
+    private int directoryCacheTtl;
+
+    @Value("${cnr.storage.azure.metadataChecksum:MD5}")
+    private MetadataEncodingUtils.Checksum metadataChecksum;
+
 
     public String getContainerName() {
         return containerName;
@@ -64,4 +77,39 @@ public class AzureStorageConfigurationProperties {
     public void setMetadataKeys(Map<String, String> metadataKeys) {
         this.metadataKeys = metadataKeys;
     }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getDirectoryCacheSize() {
+        return directoryCacheSize;
+    }
+
+    public void setDirectoryCacheSize(int directoryCacheSize) {
+        this.directoryCacheSize = directoryCacheSize;
+    }
+
+    /**
+     * seconds a directory found stays in the cache, the same as the folders resolved by path
+     */
+    public int getDirectoryCacheTtl() {
+        return directoryCacheTtl;
+    }
+
+    public void setDirectoryCacheTtl(int directoryCacheTtl) {
+        this.directoryCacheTtl = directoryCacheTtl;
+    }
+
+    public MetadataEncodingUtils.Checksum getMetadataChecksum() {
+        return metadataChecksum;
+    }
+
+    public void setMetadataChecksum(MetadataEncodingUtils.Checksum metadataChecksum) {
+        this.metadataChecksum = metadataChecksum;
+    }
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.blob.*;
+import it.cnr.si.spring.storage.config.AzureStorageConfigurationProperties;
+import it.cnr.si.spring.storage.config.StoragePropertyNames;
+import it.cnr.si.util.MetadataEncodingUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The driver against a mocked container, the blobs on the server are kept in a sorted map
+ */
+public class AzureStorageDriverTest {
+
+    private static final String CONTAINER_URI = "https://sigla.blob.core.windows.net/sigla/";
+
+    private final Map<String, CloudBlob> blobs = new ConcurrentSkipListMap<>();
+    /**
+     * states returned by the polls of a copy, SUCCESS once they are over
+     */
+    private final Map<String, Deque<CopyStatus>> copyStatuses = new ConcurrentHashMap<>();
+    private final Map<String, Integer> polls = new ConcurrentHashMap<>();
+    private final Set<String> started = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+
+    private AzureStorageConfigurationProperties properties;
+    private CloudBlobContainer container;
+
+    @Before
+    public void setUp() throws Exception {
+        properties = new AzureStorageConfigurationProperties();
+        properties.setMetadataKeys(Collections.singletonMap(StoragePropertyNames.TITLE.value(), "title"));
+        properties.setDirectoryCacheSize(100);
+        properties.setDirectoryCacheTtl(60);
+        properties.setMetadataChecksum(MetadataEncodingUtils.Checksum.MD5);
+        properties.setParallelism(4);
+
+        container = mock(CloudBlobContainer.class);
+        when(container.getBlobReferenceFromServer(anyString())).thenAnswer(invocation ->
+                Optional.ofNullable(blobs.get(invocation.<String>getArgument(0)))
+                        .orElseThrow(() -> new com.microsoft.azure.storage.StorageException("BlobNotFound",
+                                "The specified blob does not exist.", 404, null, null)));
+        when(container.listBlobs(anyString(), eq(true))).thenAnswer(invocation -> list(invocation.getArgument(0)));
+        when(container.listBlobsSegmented(anyString(), eq(false), any(), any(), any(), any(), any())).thenAnswer(invocation ->
+                new ResultSegment<>(list(invocation.getArgument(0)).stream()
+                        .limit(invocation.<Integer>getArgument(3))
+                        .collect(Collectors.toCollection(ArrayList::new)), invocation.getArgument(3), null));
+        when(container.getDirectoryReference(anyString())).thenAnswer(invocation -> directory(invocation.getArgument(0)));
+        when(container.getBlockBlobReference(anyString())).thenAnswer(invocation -> target(invocation.getArgument(0)));
+    }
+
+    @Test
+    public void testRenameDirectory() throws Exception {
+        for (String name : Arrays.asList("a.pdf", "b.pdf", "c.pdf", "d.pdf", "allegati/e.pdf"))
+            source("sigla/vecchia/".concat(name));
+        driver(2).updateProperties(new StorageObject("sigla/vecchia", "sigla/vecchia", Collections.emptyMap()),
+                Collections.singletonMap(StoragePropertyNames.NAME.value(), "nuova"));
+        assertEquals(Arrays.asList("sigla/nuova/a.pdf", "sigla/nuova/allegati/e.pdf", "sigla/nuova/b.pdf",
+                "sigla/nuova/c.pdf", "sigla/nuova/d.pdf"), new ArrayList<>(blobs.keySet()));
+        /*mai più copie in corso della parallelism configurata*/
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void testRenameDirectoryWaitsForCopy() throws Exception {
+        source("sigla/vecchia/a.pdf");
+        copyStatuses.put("sigla/nuova/a.pdf", new ArrayDeque<>(Arrays.asList(CopyStatus.PENDING, CopyStatus.PENDING)));
+        driver(2).updateProperties(new StorageObject("sigla/vecchia", "sigla/vecchia", Collections.emptyMap()),
+                Collections.singletonMap(StoragePropertyNames.NAME.value(), "nuova"));
+        assertEquals(3, polls.get("sigla/nuova/a.pdf").intValue());
+        assertEquals(Collections.singleton("sigla/nuova/a.pdf"), blobs.keySet());
+    }
+
+    @Test
+    public void testRenameDirectoryRollback() throws Exception {
+        for (String name : Arrays.asList("a.pdf", "b.pdf", "c.pdf"))
+            source("sigla/vecchia/".concat(name));
+        copyStatuses.put("sigla/nuova/b.pdf", new ArrayDeque<>(Collections.singleton(CopyStatus.FAILED)));
+        try {
+            driver(1).updateProperties(new StorageObject("sigla/vecchia", "sigla/vecchia", Collections.emptyMap()),
+                    Collections.singletonMap(StoragePropertyNames.NAME.value(), "nuova"));
+            fail("la copia di b.pdf è fallita");
+        } catch (StorageException e) {
+            assertEquals(StorageException.Type.GENERIC, e.getType());
+        }
+        /*nessuna copia dopo quella fallita, la copia completata è cancellata e i sorgenti restano*/
+        assertEquals(new HashSet<>(Arrays.asList("sigla/nuova/a.pdf", "sigla/nuova/b.pdf")), started);
+        assertEquals(Arrays.asList("sigla/vecchia/a.pdf", "sigla/vecchia/b.pdf", "sigla/vecchia/c.pdf"),
+                new ArrayList<>(blobs.keySet()));
+    }
+
+    @Test
+    public void testCreateDocument() throws Exception {
+        final byte[] content = "Consiglio Nazionale delle Ricerche".getBytes(StandardCharsets.UTF_8);
+        final CloudBlockBlob blob = blob("sigla/documenti/lettera.txt", 0, null);
+        final AtomicReference<HashMap<String, String>> metadata = new AtomicReference<>();
+        doAnswer(invocation -> {
+            metadata.set(invocation.getArgument(0));
+            return null;
+        }).when(blob).setMetadata(any());
+        when(blob.getMetadata()).thenAnswer(invocation -> metadata.get());
+        final ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+        doAnswer(invocation -> {
+            invocation.<InputStream>getArgument(0).transferTo(uploaded);
+            return null;
+        }).when(blob).upload(any(InputStream.class), anyLong(), any(), any(), any());
+        when(container.getBlockBlobReference("sigla/documenti/lettera.txt")).thenReturn(blob);
+
+        final Map<String, Object> metadataProperties = new HashMap<>();
+        metadataProperties.put(StoragePropertyNames.NAME.value(), "lettera.txt");
+        metadataProperties.put(StoragePropertyNames.TITLE.value(), "Lettera di incarico");
+        final StorageObject document = driver(4).createDocument(new ByteArrayInputStream(content),
+                "text/plain; charset=UTF-8", metadataProperties, null, "/sigla/documenti", false);
+
+        /*lunghezza sconosciuta, upload a blocchi parallelism alla volta, content type e metadati nella stessa richiesta*/
+        final ArgumentCaptor<BlobRequestOptions> options = ArgumentCaptor.forClass(BlobRequestOptions.class);
+        verify(blob).upload(any(InputStream.class), eq(-1L), isNull(), options.capture(), isNull());
+        verify(blob, never()).uploadMetadata();
+        verify(blob, never()).uploadProperties();
+        verify(blob, never()).downloadAttributes();
+        assertEquals(4, options.getValue().getConcurrentRequestCount().intValue());
+        assertArrayEquals(content, uploaded.toByteArray());
+        assertEquals("text/plain", blob.getProperties().getContentType());
+        assertEquals("Lettera di incarico", MetadataEncodingUtils.decodeValue(
+                metadata.get().get(MetadataEncodingUtils.encodeKey(StoragePropertyNames.TITLE.value()))));
+
+        /*la lunghezza è quella dei byte contati durante l'upload*/
+        assertEquals("sigla/documenti/lettera.txt", document.getKey());
+        assertEquals(BigInteger.valueOf(content.length), document.getPropertyValue(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()));
+        assertEquals(StoragePropertyNames.CMIS_DOCUMENT.value(), document.getPropertyValue(StoragePropertyNames.BASE_TYPE_ID.value()));
+        assertEquals("text/plain", document.getPropertyValue(StoragePropertyNames.CONTENT_STREAM_MIME_TYPE.value()));
+        assertEquals("lettera.txt", document.getPropertyValue(StoragePropertyNames.NAME.value()));
+        assertEquals("Lettera di incarico", document.getPropertyValue(StoragePropertyNames.TITLE.value()));
+    }
+
+    @Test
+    public void testChildrenPages() throws Exception {
+        final HashMap<String, String> metadata = new HashMap<>();
+        metadata.put(MetadataEncodingUtils.encodeKey(StoragePropertyNames.TITLE.value()),
+                MetadataEncodingUtils.encodeValue("Lettera di incarico"));
+        final ResultContinuation continuation = new ResultContinuation();
+        continuation.setContinuationType(ResultContinuationType.BLOB);
+        continuation.setNextMarker("2!sigla/documenti/verbale.pdf");
+        final ResultSegment<ListBlobItem> firstSegment = new ResultSegment<>(new ArrayList<>(Arrays.asList(
+                blob("sigla/documenti/lettera.pdf", 10, metadata),
+                directory("sigla/documenti/allegati"))), 2, continuation);
+        final ResultSegment<ListBlobItem> lastSegment = new ResultSegment<>(new ArrayList<>(Collections.singletonList(
+                blob("sigla/documenti/verbale.pdf", 20, new HashMap<>()))), 2, null);
+        when(container.listBlobsSegmented(eq("sigla/documenti/"), eq(false), eq(EnumSet.of(BlobListingDetails.METADATA)),
+                eq(2), isNull(), isNull(), isNull()))
+                .thenReturn(firstSegment);
+        when(container.listBlobsSegmented(eq("sigla/documenti/"), eq(false), eq(EnumSet.of(BlobListingDetails.METADATA)),
+                eq(2), argThat(token -> token != null && token.getNextMarker().equals("2!sigla/documenti/verbale.pdf")),
+                isNull(), isNull()))
+                .thenReturn(lastSegment);
+        final AzureStorageDriver storageDriver = driver(4);
+
+        final StoragePage first = storageDriver.getChildrenPage("/sigla/documenti", 2, null);
+        assertEquals(Arrays.asList("sigla/documenti/lettera.pdf", "sigla/documenti/allegati"),
+                first.getItems().stream().map(StorageObject::getKey).collect(Collectors.toList()));
+        assertEquals("2!sigla/documenti/verbale.pdf", first.getContinuationToken());
+        final StorageObject lettera = first.getItems().get(0);
+        assertEquals("Lettera di incarico", lettera.getPropertyValue(StoragePropertyNames.TITLE.value()));
+        assertEquals(BigInteger.TEN, lettera.getPropertyValue(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()));
+        assertEquals(StoragePropertyNames.CMIS_FOLDER.value(),
+                first.getItems().get(1).getPropertyValue(StoragePropertyNames.BASE_TYPE_ID.value()));
+
+        final StoragePage last = storageDriver.getChildrenPage("/sigla/documenti", 2, first.getContinuationToken());
+        assertEquals(Collections.singletonList("sigla/documenti/verbale.pdf"),
+                last.getItems().stream().map(StorageObject::getKey).collect(Collectors.toList()));
+        assertNull(last.getContinuationToken());
+        /*proprietà e metadati arrivano con il listing, nessuna richiesta per blob*/
+        verify(container, never()).getBlobReferenceFromServer(anyString());
+    }
+
+    @Test
+    public void testDirectoryCacheTtl() throws Exception {
+        source("sigla/vecchia/a.pdf");
+        final AzureStorageDriver storageDriver = driver(4);
+        assertEquals("sigla/vecchia", storageDriver.getObject("sigla/vecchia").getKey());
+        assertEquals("sigla/vecchia", storageDriver.getObject("sigla/vecchia").getKey());
+        verify(container, times(1)).getBlobReferenceFromServer("sigla/vecchia");
+        verify(container, times(1)).listBlobsSegmented(eq("sigla/vecchia/"), eq(false), any(), any(), any(), any(), any());
+
+        /*scaduta la cache la directory svuotata da un altro client non esiste più*/
+        clearInvocations(container);
+        properties.setDirectoryCacheTtl(0);
+        final AzureStorageDriver expiringDriver = driver(4);
+        assertEquals("sigla/vecchia", expiringDriver.getObject("sigla/vecchia").getKey());
+        blobs.clear();
+        assertNull(expiringDriver.getObject("sigla/vecchia"));
+        verify(container, times(2)).listBlobsSegmented(eq("sigla/vecchia/"), eq(false), any(), any(), any(), any(), any());
+    }
+
+    private AzureStorageDriver driver(int parallelism) {
+        properties.setParallelism(parallelism);
+        return new AzureStorageDriver(container, properties);
+    }
+
+    private List<ListBlobItem> list(String prefix) {
+        return blobs.entrySet().stream()
+                .filter(entry -> entry.getKey().startsWith(prefix))
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+    }
+
+    private CloudBlobDirectory directory(String key) throws Exception {
+        final CloudBlobDirectory directory = mock(CloudBlobDirectory.class);
+        when(directory.getPrefix()).thenReturn(key.concat(StorageDriver.SUFFIX));
+        if (key.contains(StorageDriver.SUFFIX)) {
+            final CloudBlobDirectory parent = directory(key.substring(0, key.lastIndexOf(StorageDriver.SUFFIX)));
+            when(directory.getParent()).thenReturn(parent);
+        }
+        return directory;
+    }
+
+    private CloudBlockBlob blob(String key, long length, HashMap<String, String> metadata) throws Exception {
+        final CloudBlockBlob blob = mock(CloudBlockBlob.class);
+        final BlobProperties blobProperties = spy(new BlobProperties());
+        doReturn(length).when(blobProperties).getLength();
+        doReturn(new Date()).when(blobProperties).getLastModified();
+        when(blob.getName()).thenReturn(key);
+        when(blob.getUri()).thenReturn(URI.create(CONTAINER_URI.concat(key)));
+        when(blob.getProperties()).thenReturn(blobProperties);
+        when(blob.getMetadata()).thenReturn(metadata);
+        doAnswer(invocation -> blobs.remove(key)).when(blob).delete(any(), any(), any(), any());
+        return blob;
+    }
+
+    private void source(String key) throws Exception {
+        blobs.put(key, blob(key, 1, new HashMap<>()));
+    }
+
+    /**
+     * the blob of a copy, it enters the container when a poll finds the copy succeeded
+     */
+    private CloudBlockBlob target(String key) throws Exception {
+        final CloudBlockBlob target = blob(key, 1, new HashMap<>());
+        final AtomicReference<CopyState> copyState = new AtomicReference<>();
+        doAnswer(invocation -> {
+            started.add(key);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            return key;
+        }).when(target).startCopy(any(URI.class));
+        doAnswer(invocation -> {
+            final CopyStatus status = Optional.ofNullable(copyStatuses.get(key))
+                    .map(Deque::poll)
+                    .orElse(CopyStatus.SUCCESS);
+            polls.merge(key, 1, Integer::sum);
+            if (status != CopyStatus.PENDING)
+                inFlight.decrementAndGet();
+            if (status == CopyStatus.SUCCESS)
+                blobs.put(key, target);
+            final CopyState state = mock(CopyState.class);
+            when(state.getStatus()).thenReturn(status);
+            copyState.set(state);
+            return null;
+        }).when(target).downloadAttributes();
+        when(target.getCopyState()).thenAnswer(invocation -> copyState.get());
+        return target;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package it.cnr.si.spring.storage.benchmark;
+
+import com.amazonaws.services.s3.AmazonS3;
+import it.cnr.si.spring.storage.InMemoryAmazonS3;
+import it.cnr.si.spring.storage.StorageDriver;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bootstraps the same component scan used by the applications for the requested driver.
+ * <ul>
+ *     <li>filesystem: a private directory below {@code benchmark.directory} (tmpfs {@code /dev/shm} when available)</li>
+ *     <li>s3: {@link InMemoryAmazonS3} replaces the {@code amazonS3} bean</li>
+ *     <li>azure, cmis: endpoints are read from system properties
+ *     (e.g. {@code -Dcnr.storage.azure.connectionString=UseDevelopmentStorage=true} for Azurite,
+ *     the OpenCMIS InMemory server for CMIS)</li>
+ * </ul>
+ */
+public final class BenchmarkContext {
+
+    public static final String BENCHMARK_DIRECTORY = "benchmark.directory";
+    private static final String TMPFS = "/dev/shm";
+
+    private BenchmarkContext() {
+    }
+
+    public static Path workingDirectory() {
+        return Paths.get(System.getProperty(BENCHMARK_DIRECTORY,
+                Files.isDirectory(Paths.get(TMPFS)) && Files.isWritable(Paths.get(TMPFS)) ?
+                        TMPFS :
+                        System.getProperty("java.io.tmpdir")));
+    }
+
+    public static AnnotationConfigApplicationContext create(StorageDriver.StoreType storeType, Path directory) {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        MutablePropertySources propertySources = context.getEnvironment().getPropertySources();
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("cnr.storage.driver", storeType.name().toLowerCase());
+        propertySources.addFirst(new MapPropertySource("benchmark", properties));
+
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("cnr.storage.filesystem.directory", directory.toString());
+        propertySources.addAfter(StandardEnvironment.SYSTEM_ENVIRONMENT_PROPERTY_SOURCE_NAME,
+                new MapPropertySource("benchmark-defaults", defaults));
+        try {
+            for (Resource resource : new PathMatchingResourcePatternResolver().getResources("classpath*:META-INF/spring/*.properties")) {
+                propertySources.addLast(new ResourcePropertySource(resource));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (storeType.equals(StorageDriver.StoreType.S3)) {
+            context.registerBean("amazonS3", AmazonS3.class, InMemoryAmazonS3::new);
+        }
+        context.scan("it.cnr.si.spring.storage");
+        context.refresh();
+        return context;
+    }
+}
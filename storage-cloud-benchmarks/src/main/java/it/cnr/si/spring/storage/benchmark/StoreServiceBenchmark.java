@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package it.cnr.si.spring.storage.benchmark;
+
+import it.cnr.si.spring.storage.StorageObject;
+import it.cnr.si.spring.storage.config.StoragePropertyNames;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of {@link it.cnr.si.spring.storage.StoreService} and of the underlying
+ * {@link it.cnr.si.spring.storage.StorageDriver}, per driver, object size and folder fan-out.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreServiceBenchmark {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Benchmark
+    public StorageObject createDocument(StoreServiceState state, CreatedDocument createdDocument) {
+        createdDocument.storageObject = state.createDocument();
+        return createdDocument.storageObject;
+    }
+
+    @Benchmark
+    public StorageObject getObject(StoreServiceState state) {
+        return state.storeService.getStorageObjectBykey(state.randomChild().getKey());
+    }
+
+    @Benchmark
+    public StorageObject getObjectByPath(StoreServiceState state) {
+        return state.storeService.getStorageObjectByPath(state.randomChild().getPath());
+    }
+
+    @Benchmark
+    public List<StorageObject> getChildren(StoreServiceState state) {
+        return state.storeService.getChildren(state.folder.getKey());
+    }
+
+    @Benchmark
+    public void updateProperties(StoreServiceState state) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(StoragePropertyNames.TITLE.value(), "benchmark-" + state.nextSequence());
+        state.storeService.updateProperties(metadata, state.randomChild());
+    }
+
+    @Benchmark
+    public long getInputStream(StoreServiceState state, Blackhole blackhole) throws IOException {
+        long read = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream inputStream = state.storeService.getResource(state.randomChild().getKey())) {
+            int n;
+            while ((n = inputStream.read(buffer)) != -1) {
+                blackhole.consume(buffer);
+                read += n;
+            }
+        }
+        return read;
+    }
+
+    @Benchmark
+    public Boolean delete(StoreServiceState state, DocumentToDelete documentToDelete) {
+        return state.storeService.delete(documentToDelete.storageObject);
+    }
+
+    /**
+     * Removes the document created by the measured invocation, so that the store does not grow across iterations.
+     */
+    @State(Scope.Thread)
+    public static class CreatedDocument {
+        StorageObject storageObject;
+
+        @TearDown(Level.Invocation)
+        public void tearDown(StoreServiceState state) {
+            if (storageObject != null) {
+                state.storeService.delete(storageObject);
+                storageObject = null;
+            }
+        }
+    }
+
+    /**
+     * Creates, outside of the measured region, the document removed by the next invocation.
+     */
+    @State(Scope.Thread)
+    public static class DocumentToDelete {
+        StorageObject storageObject;
+
+        @Setup(Level.Invocation)
+        public void setUp(StoreServiceState state) {
+            storageObject = state.createDocument();
+        }
+    }
+}
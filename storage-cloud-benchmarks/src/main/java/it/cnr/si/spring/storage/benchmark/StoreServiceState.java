@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package it.cnr.si.spring.storage.benchmark;
+
+import it.cnr.si.spring.storage.StorageDriver;
+import it.cnr.si.spring.storage.StorageObject;
+import it.cnr.si.spring.storage.StoreService;
+import it.cnr.si.spring.storage.config.StoragePropertyNames;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One populated folder per trial: {@code fanOut} documents of {@code objectSize} bytes each.
+ */
+@State(Scope.Benchmark)
+public class StoreServiceState {
+
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    @Param({"filesystem", "s3"})
+    public String driver;
+
+    @Param({"1024", "1048576"})
+    public int objectSize;
+
+    @Param({"10", "1000"})
+    public int fanOut;
+
+    private AnnotationConfigApplicationContext context;
+    private Path directory;
+    private byte[] payload;
+    private final AtomicLong sequence = new AtomicLong();
+
+    StoreService storeService;
+    StorageDriver storageDriver;
+    StorageObject folder;
+    List<StorageObject> children;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory(BenchmarkContext.workingDirectory(), "storage-cloud-benchmark");
+        context = BenchmarkContext.create(StorageDriver.StoreType.valueOf(driver.toUpperCase()), directory);
+        storeService = context.getBean(StoreService.class);
+        storageDriver = context.getBean(StorageDriver.class);
+
+        payload = new byte[objectSize];
+        new Random(objectSize).nextBytes(payload);
+
+        final String folderName = "benchmark-" + UUID.randomUUID();
+        storeService.createFolderIfNotPresent(StorageDriver.SUFFIX, folderName, null, null);
+        folder = storeService.getStorageObjectByPath(StorageDriver.SUFFIX.concat(folderName), true, true);
+        children = new ArrayList<>(fanOut);
+        for (int i = 0; i < fanOut; i++) {
+            children.add(createDocument());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try {
+            children.forEach(storeService::delete);
+            storeService.delete(folder);
+        } finally {
+            context.close();
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    StorageObject createDocument() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(StoragePropertyNames.NAME.value(), "document-" + sequence.incrementAndGet());
+        metadata.put(StoragePropertyNames.OBJECT_TYPE_ID.value(), StoragePropertyNames.CMIS_DOCUMENT.value());
+        metadata.put(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value(),
+                new ArrayList<>(Collections.singletonList(StoragePropertyNames.ASPECT_TITLED.value())));
+        metadata.put(StoragePropertyNames.TITLE.value(), "benchmark");
+        return storeService.storeSimpleDocument(content(), CONTENT_TYPE, metadata, folder);
+    }
+
+    InputStream content() {
+        return new ByteArrayInputStream(payload);
+    }
+
+    StorageObject randomChild() {
+        return children.get(ThreadLocalRandom.current().nextInt(children.size()));
+    }
+
+    long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+}
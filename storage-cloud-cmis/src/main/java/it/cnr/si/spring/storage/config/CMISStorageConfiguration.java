@@ -17,11 +17,14 @@
 
 package it.cnr.si.spring.storage.config;
 
+import it.cnr.si.spring.storage.LazyStorageObject;
 import it.cnr.si.spring.storage.MimeTypes;
 import it.cnr.si.spring.storage.StorageException;
 import it.cnr.si.spring.storage.StorageObject;
 import it.cnr.si.spring.storage.StorageDriver;
+import it.cnr.si.spring.storage.StoragePage;
 import it.cnr.si.spring.storage.condition.StorageDriverIsCmis;
+import it.cnr.si.util.LimitedInputStream;
 import org.apache.chemistry.opencmis.client.api.*;
 import org.apache.chemistry.opencmis.client.bindings.impl.CmisBindingsHelper;
 import org.apache.chemistry.opencmis.client.bindings.impl.SessionImpl;
@@ -34,6 +37,8 @@ import org.apache.chemistry.opencmis.client.runtime.SessionFactoryImpl;
 import org.apache.chemistry.opencmis.client.util.OperationContextUtils;
 import org.apache.chemistry.opencmis.commons.PropertyIds;
 import org.apache.chemistry.opencmis.commons.SessionParameter;
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.PartialContentStream;
 import org.apache.chemistry.opencmis.commons.data.PropertyData;
 import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
 import org.apache.chemistry.opencmis.commons.enums.RelationshipDirection;
@@ -57,6 +62,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 
 import jakarta.annotation.PostConstruct;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -199,6 +205,25 @@ public class CMISStorageConfiguration {
                     throw new StorageException(StorageException.Type.GENERIC, "Add Auto Version. Exception: " + resp.getErrorContent());
             }
 
+            /**
+             * properties of the children, read from the CmisObject when asked
+             */
+            private final LazyStorageObject.MetadataLoader<CmisObject> cmisObjectLoader = new LazyStorageObject.MetadataLoader<CmisObject>() {
+                @Override
+                public Object getPropertyValue(String key, CmisObject cmisObject, String name) {
+                    return cmisObject.getPropertyValue(name);
+                }
+
+                @Override
+                public Map<String, ?> getProperties(String key, CmisObject cmisObject) {
+                    return convertProperties(cmisObject.getProperties());
+                }
+            };
+
+            private StorageObject getStorageObject(CmisObject cmisObject) {
+                return new LazyStorageObject<CmisObject>(cmisObject.getId(), getPath(cmisObject), cmisObject, cmisObjectLoader);
+            }
+
             private Map<String, Object> convertProperties(List<Property<?>> properties) {
                 return properties.stream()
                         .collect(HashMap::new, (m, v) -> m.put(v.getId(), v.getValue()), HashMap::putAll);
@@ -333,6 +358,49 @@ public class CMISStorageConfiguration {
                         .orElseThrow(() -> new StorageException(StorageException.Type.INVALID_ARGUMENTS, "You must specify key for get input stream"));
             }
 
+            /**
+             * Repositories that ignore the range answer with the whole stream, which is then skipped and limited here.
+             * A stream is taken as ranged when it is partial or shorter than the whole content.
+             */
+            @Override
+            public InputStream getInputStream(String key, long offset, long length) {
+                ContentStream contentStream = siglaSession.getContentStream(new ObjectIdImpl(key), null,
+                        BigInteger.valueOf(offset), BigInteger.valueOf(length));
+                InputStream inputStream = Optional.ofNullable(contentStream)
+                        .map(ContentStream::getStream)
+                        .orElseThrow(() -> new StorageException(StorageException.Type.NOT_FOUND, "Document " + key + " has no content"));
+                if (offset > 0 && !isRanged(key, contentStream)) {
+                    try {
+                        inputStream.skipNBytes(offset);
+                    } catch (IOException e) {
+                        try {
+                            inputStream.close();
+                        } catch (IOException suppressed) {
+                            e.addSuppressed(suppressed);
+                        }
+                        throw new StorageException(StorageException.Type.GENERIC, e);
+                    }
+                }
+                return new LimitedInputStream(inputStream, length);
+            }
+
+            /**
+             * the returned length is compared with the content length of the document, read only when needed
+             */
+            private boolean isRanged(String key, ContentStream contentStream) {
+                if (contentStream instanceof PartialContentStream)
+                    return true;
+                return Optional.ofNullable(contentStream.getBigLength())
+                        .filter(returned -> returned.signum() >= 0)
+                        .map(returned -> Optional.ofNullable(siglaSession.getObject(key))
+                                .filter(Document.class::isInstance)
+                                .map(Document.class::cast)
+                                .map(Document::getContentStreamLength)
+                                .map(contentLength -> returned.longValue() < contentLength)
+                                .orElse(false))
+                        .orElse(false);
+            }
+
             public InputStream getInputStream(String key, Boolean majorVersion) {
                 return Optional.ofNullable(siglaSession)
                         .flatMap(session -> Optional.ofNullable(session.getObject(key)))
@@ -377,6 +445,33 @@ public class CMISStorageConfiguration {
                 }
             }
 
+            /**
+             * Documents and empty folders are deleted by id without loading them first,
+             * non empty folders are removed with a single deleteTree.
+             */
+            @Override
+            public Map<String, Boolean> deleteAll(Collection<String> ids) {
+                Map<String, Boolean> result = new LinkedHashMap<>();
+                ids.forEach(id -> {
+                    try {
+                        try {
+                            siglaSession.delete(new ObjectIdImpl(id), true);
+                        } catch (CmisConstraintException _ex) {
+                            Optional.ofNullable(siglaSession.getObject(id))
+                                    .filter(Folder.class::isInstance)
+                                    .map(Folder.class::cast)
+                                    .orElseThrow(() -> _ex)
+                                    .deleteTree(true, UnfileObject.DELETE, false);
+                        }
+                        result.put(id, true);
+                    } catch (CmisObjectNotFoundException _ex) {
+                        logger.warn("item {} does not exist", id);
+                        result.put(id, false);
+                    }
+                });
+                return result;
+            }
+
             @Override
             public StorageObject getObject(String id) {
                 try {
@@ -423,15 +518,29 @@ public class CMISStorageConfiguration {
                         .map(folder -> folder.getChildren())
                         .map(cmisObjects -> {
                             List<StorageObject> list = new ArrayList<StorageObject>();
-                            cmisObjects.forEach(cmisObject ->
-                                    list.add(new StorageObject(cmisObject.getId(),
-                                            getPath(cmisObject),
-                                            convertProperties(cmisObject.getProperties()))));
+                            cmisObjects.forEach(cmisObject -> list.add(getStorageObject(cmisObject)));
                             return list;
                         })
                         .orElse(Collections.EMPTY_LIST);
             }
 
+            /**
+             * The continuation token is the skip count of the next page.
+             */
+            @Override
+            public StoragePage getChildrenPage(String key, int pageSize, String continuationToken) {
+                OperationContext operationContext = OperationContextUtils.copyOperationContext(siglaSession.getDefaultContext());
+                operationContext.setMaxItemsPerPage(pageSize);
+                long skipCount = Optional.ofNullable(continuationToken).map(Long::valueOf).orElse(0L);
+                ItemIterable<CmisObject> page = ((Folder) siglaSession.getObject(key))
+                        .getChildren(operationContext)
+                        .skipTo(skipCount)
+                        .getPage();
+                List<StorageObject> list = new ArrayList<StorageObject>();
+                page.forEach(cmisObject -> list.add(getStorageObject(cmisObject)));
+                return new StoragePage(list, page.getHasMoreItems() ? String.valueOf(skipCount + list.size()) : null);
+            }
+
             @Override
             public List<StorageObject> getChildren(String key, int depth) {
                 return Optional.ofNullable(siglaSession)
@@ -441,13 +550,9 @@ public class CMISStorageConfiguration {
                         .map(cmisObjects -> {
                             List<StorageObject> list = new ArrayList<StorageObject>();
                             cmisObjects.stream().forEach(cmisObject -> {
-                                list.add(new StorageObject(cmisObject.getItem().getId(),
-                                        getPath(cmisObject.getItem()),
-                                        convertProperties(cmisObject.getItem().getProperties())));
+                                list.add(getStorageObject(cmisObject.getItem()));
                                 cmisObject.getChildren().forEach(fileableCmisObjectTree ->
-                                        list.add(new StorageObject(fileableCmisObjectTree.getItem().getId(),
-                                                getPath(fileableCmisObjectTree.getItem()),
-                                                convertProperties(fileableCmisObjectTree.getItem().getProperties())))
+                                        list.add(getStorageObject(fileableCmisObjectTree.getItem()))
                                 );
                             });
                             return list;
@@ -461,16 +566,14 @@ public class CMISStorageConfiguration {
                         .map(session -> siglaSession.query(query, false))
                         .map(queryResults -> {
                             List<StorageObject> list = new ArrayList<StorageObject>();
-                            if (queryResults.getTotalNumItems() > 0) {
-                                queryResults.forEach(queryResult -> list.add(new StorageObject(
-                                        Optional.ofNullable(
-                                                queryResult.getPropertyValueById(StoragePropertyNames.ID.value())
-                                        ).map(String.class::cast).orElse(null),
-                                        Optional.ofNullable(
-                                                queryResult.getPropertyValueById(StoragePropertyNames.PATH.value())
-                                        ).map(String.class::cast).orElse(null),
-                                        convertPropertiesData(queryResult.getProperties()))));
-                            }
+                            queryResults.forEach(queryResult -> list.add(new StorageObject(
+                                    Optional.ofNullable(
+                                            queryResult.getPropertyValueById(StoragePropertyNames.ID.value())
+                                    ).map(String.class::cast).orElse(null),
+                                    Optional.ofNullable(
+                                            queryResult.getPropertyValueById(StoragePropertyNames.PATH.value())
+                                    ).map(String.class::cast).orElse(null),
+                                    convertPropertiesData(queryResult.getProperties()))));
                             return list;
                         })
                         .orElse(Collections.EMPTY_LIST);
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * StorageObject whose metadata stay in the form the driver received them (S3 ObjectMetadata, CMIS object, ...)
+ * and are converted one property at a time, the first time it is read.
+ * Two LazyStorageObjects are equal when their keys are.
+ */
+public class LazyStorageObject<S> extends StorageObject {
+    private static final Object NULL = new Object();
+
+    private final transient S source;
+    private final transient MetadataLoader<S> metadataLoader;
+    private final transient ConcurrentMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+    public LazyStorageObject(String key, String path, S source, MetadataLoader<S> metadataLoader) {
+        super(key, path, null);
+        this.source = source;
+        this.metadataLoader = metadataLoader;
+    }
+
+    @Override
+    public <T> T getPropertyValue(String key) {
+        Object value = values.get(key);
+        if (value == null) {
+            value = Optional.ofNullable(metadataLoader.getPropertyValue(getKey(), source, key)).orElse(NULL);
+            values.putIfAbsent(key, value);
+        }
+        return value == NULL ? null : (T) value;
+    }
+
+    /**
+     * @return all the properties, converted
+     */
+    public Map<String, ?> getProperties() {
+        return metadataLoader.getProperties(getKey(), source);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return getKey() != null ? getKey().equals(((LazyStorageObject<?>) o).getKey()) : ((LazyStorageObject<?>) o).getKey() == null;
+    }
+
+    @Override
+    public int hashCode() {
+        return getKey() != null ? getKey().hashCode() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageObject{" +
+                "key='" + getKey() + '\'' +
+                ", path='" + getPath() + '\'' +
+                ", metadata=" + getProperties() +
+                '}';
+    }
+
+    /**
+     * Serialized as a plain StorageObject, with every property converted
+     */
+    private Object writeReplace() {
+        return new StorageObject(getKey(), getPath(), new HashMap<String, Object>(getProperties()));
+    }
+
+    /**
+     * Converts the metadata of a driver, a single instance serves every object
+     *
+     * @param <S> metadata as returned by the driver
+     */
+    public interface MetadataLoader<S> {
+        /**
+         * @return the converted value of the property name of the object key
+         */
+        Object getPropertyValue(String key, S source, String name);
+
+        /**
+         * @return all the properties of the object key, converted
+         */
+        Map<String, ?> getProperties(String key, S source);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package it.cnr.si.spring.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Splits an object into ranges of rangeSize bytes, read concurrently with
+ * {@link StorageDriver#getInputStream(String, long, long)}, at most parallelism at a time.
+ */
+public class ParallelRangeDownloader {
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private final StorageDriver storageDriver;
+    private final Executor executor;
+    private final int rangeSize;
+    private final int parallelism;
+
+    public ParallelRangeDownloader(StorageDriver storageDriver, Executor executor, int rangeSize, int parallelism) {
+        this.storageDriver = storageDriver;
+        this.executor = executor;
+        this.rangeSize = Math.max(1, rangeSize);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * ranges are reassembled in order, the next ones are prefetched while the current one is consumed
+     *
+     * @param key           key
+     * @param contentLength length of the object
+     * @return object InputStream
+     */
+    public InputStream download(String key, long contentLength) {
+        if (contentLength <= rangeSize)
+            return storageDriver.getInputStream(key);
+        return new RangesInputStream(key, contentLength);
+    }
+
+    /**
+     * every range is transferred straight into its position of the target channel
+     *
+     * @param key           key
+     * @param contentLength length of the object
+     * @param target        channel open for writing
+     */
+    public void download(String key, long contentLength, FileChannel target) {
+        Semaphore permits = new Semaphore(parallelism);
+        List<CompletableFuture<Void>> ranges = new ArrayList<>();
+        try {
+            for (long offset = 0; offset < contentLength; offset += rangeSize) {
+                final long position = offset, length = Math.min(rangeSize, contentLength - offset);
+                permits.acquire();
+                ranges.add(CompletableFuture
+                        .runAsync(() -> transfer(key, position, length, target), executor)
+                        .whenComplete((aVoid, throwable) -> permits.release()));
+                if (ranges.stream().anyMatch(CompletableFuture::isCompletedExceptionally))
+                    break;
+            }
+            join(CompletableFuture.allOf(ranges.toArray(new CompletableFuture[ranges.size()])));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(StorageException.Type.GENERIC, e);
+        }
+    }
+
+    /**
+     * positional writes extend the target, ranges past its current end are written as well
+     */
+    private void transfer(String key, long position, long length, FileChannel target) {
+        try (ReadableByteChannel source = Channels.newChannel(storageDriver.getInputStream(key, position, length))) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, TRANSFER_BUFFER_SIZE));
+            long transferred = 0;
+            while (transferred < length) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - transferred));
+                if (source.read(buffer) < 0)
+                    throw new StorageException(StorageException.Type.GENERIC,
+                            "Range of " + key + " truncated at " + (position + transferred));
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    transferred += target.write(buffer, position + transferred);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] readRange(String key, long position, int length) {
+        try (InputStream inputStream = storageDriver.getInputStream(key, position, length)) {
+            byte[] range = inputStream.readNBytes(length);
+            if (range.length < length)
+                throw new StorageException(StorageException.Type.GENERIC,
+                        "Range of " + key + " truncated at " + (position + range.length));
+            return range;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof StorageException)
+                throw (StorageException) e.getCause();
+            throw new StorageException(StorageException.Type.GENERIC, e.getCause());
+        }
+    }
+
+    private class RangesInputStream extends InputStream {
+        private final String key;
+        private final long contentLength;
+        private final Deque<CompletableFuture<byte[]>> ranges = new ArrayDeque<>();
+        private long nextOffset;
+        private byte[] current = new byte[0];
+        private int position;
+
+        RangesInputStream(String key, long contentLength) {
+            this.key = key;
+            this.contentLength = contentLength;
+            while (ranges.size() < parallelism && schedule())
+                ;
+        }
+
+        private boolean schedule() {
+            if (nextOffset >= contentLength)
+                return false;
+            final long offset = nextOffset;
+            final int length = (int) Math.min(rangeSize, contentLength - offset);
+            ranges.add(CompletableFuture.supplyAsync(() -> readRange(key, offset, length), executor));
+            nextOffset += length;
+            return true;
+        }
+
+        private boolean next() {
+            while (position == current.length) {
+                if (ranges.isEmpty())
+                    return false;
+                current = join(ranges.poll());
+                position = 0;
+                schedule();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() {
+            return next() ? current[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!next())
+                return -1;
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current.length - position;
+        }
+
+        @Override
+        public void close() {
+            ranges.forEach(range -> range.cancel(false));
+            ranges.clear();
+            nextOffset = contentLength;
+            current = new byte[0];
+            position = 0;
+        }
+    }
+}
@@ -17,12 +17,16 @@
 
 package it.cnr.si.spring.storage;
 
+import it.cnr.si.util.LimitedInputStream;
 import org.apache.http.auth.UsernamePasswordCredentials;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
@@ -33,6 +37,7 @@ public interface StorageDriver {
 
 
     String SUFFIX = "/";
+    int DEFAULT_PAGE_SIZE = 1000;
     Pattern UUID_PATTERN = Pattern.compile("[a-f0-9]{8}-[a-f0-9]{4}-[12345][a-f0-9]{3}-[89aAbB][a-f0-9]{3}-[a-f0-9]{12}");
 
     /**
@@ -103,15 +108,85 @@ public interface StorageDriver {
      */
     InputStream getInputStream(String key, Boolean majorVersion);
 
+    /**
+     * get a range of the object input stream, drivers override it with the ranged read of the store
+     *
+     * @param key    key
+     * @param offset first byte
+     * @param length number of bytes
+     * @return object InputStream
+     */
+    default InputStream getInputStream(String key, long offset, long length) {
+        InputStream inputStream = getInputStream(key);
+        boolean skipped = false;
+        try {
+            inputStream.skipNBytes(offset);
+            skipped = true;
+        } catch (IOException e) {
+            throw new StorageException(StorageException.Type.GENERIC, e);
+        } finally {
+            if (!skipped) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // the skip failure is the one reported
+                }
+            }
+        }
+        return new LimitedInputStream(inputStream, length);
+    }
+
+    /**
+     * write the object content to a channel, drivers override it with a zero-copy transfer when the store allows it
+     *
+     * @param key    key
+     * @param target channel, left open
+     * @return number of bytes written
+     */
+    default long transferTo(String key, WritableByteChannel target) {
+        try (InputStream inputStream = getInputStream(key)) {
+            byte[] buffer = new byte[8192];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long transferred = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                byteBuffer.clear().limit(read);
+                while (byteBuffer.hasRemaining()) {
+                    target.write(byteBuffer);
+                }
+                transferred += read;
+            }
+            return transferred;
+        } catch (IOException e) {
+            throw new StorageException(StorageException.Type.GENERIC, e);
+        }
+    }
+
     /**
      * delete an object
      *
      * @param id object id
-     * @return a CompletableFuture wrapping true if object exists
+     * @return true if object exists
      */
     Boolean delete(String id);
 
     /**
+     * delete many objects, drivers override it with the bulk operation of the store
+     *
+     * @param ids object ids
+     * @return for every id, in iteration order, true if the object has been deleted;
+     * false for an id that does not exist, as {@link #delete(String)} answers, except on stores whose bulk delete
+     * does not report missing objects: there (S3) a missing id is true, while delete(String) returns false for it
+     */
+    default Map<String, Boolean> deleteAll(Collection<String> ids) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        ids.forEach(id -> result.put(id, delete(id)));
+        return result;
+    }
+
+    /**
+     * metadata of an object, drivers must not transfer its content: use getInputStream for that
+     *
      * @param id object id
      * @return StorageObject
      */
@@ -148,6 +223,34 @@ public interface StorageDriver {
      */
     List<StorageObject> getChildren(String key, int depth);
 
+    /**
+     * retrieve one page of children, drivers override it with the paged listing of the store
+     *
+     * @param key               object id
+     * @param pageSize          max number of children
+     * @param continuationToken token of the previous page, null for the first one
+     * @return page of StorageObject
+     */
+    default StoragePage getChildrenPage(String key, int pageSize, String continuationToken) {
+        List<StorageObject> children = getChildren(key);
+        int from = Optional.ofNullable(continuationToken).map(Integer::valueOf).orElse(0);
+        int to = Math.min(children.size(), from + pageSize);
+        return new StoragePage(new ArrayList<>(children.subList(from, to)), to < children.size() ? String.valueOf(to) : null);
+    }
+
+    /**
+     * retrieve all children, fetching the next page only when the stream reaches it
+     *
+     * @param key object id
+     * @return stream of StorageObject
+     */
+    default Stream<StorageObject> streamChildren(String key) {
+        return Stream.iterate(getChildrenPage(key, DEFAULT_PAGE_SIZE, null),
+                Objects::nonNull,
+                page -> page.hasNext() ? getChildrenPage(key, DEFAULT_PAGE_SIZE, page.getContinuationToken()) : null)
+                .flatMap(page -> page.getItems().stream());
+    }
+
     /**
      * search documents or folders
      *
@@ -203,6 +306,81 @@ public interface StorageDriver {
      */
     void createRelationship(String source, String target, String relationshipName);
 
+    /**
+     * create a new document asynchronously
+     *
+     * @param inputStream        stream of document
+     * @param contentType        content type
+     * @param metadataProperties metadataProperties
+     * @param parentObject       parentObject
+     * @param path               path
+     * @param makeVersionable    makeVersionable
+     * @param executor           executor running the remote call
+     * @param permissions        permissions
+     * @return a CompletableFuture wrapping the StorageObject
+     */
+    default CompletableFuture<StorageObject> createDocumentAsync(InputStream inputStream, String contentType, Map<String, Object> metadataProperties,
+                                                                 StorageObject parentObject, String path, boolean makeVersionable,
+                                                                 Executor executor, Permission... permissions) {
+        return CompletableFuture.supplyAsync(() ->
+                createDocument(inputStream, contentType, metadataProperties, parentObject, path, makeVersionable, permissions), executor);
+    }
+
+    /**
+     * @param id       object id
+     * @param executor executor running the remote call
+     * @return a CompletableFuture wrapping the StorageObject or null
+     */
+    default CompletableFuture<StorageObject> getObjectAsync(String id, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getObject(id), executor);
+    }
+
+    /**
+     * retrieve all children asynchronously
+     *
+     * @param key      object id
+     * @param executor executor running the remote call
+     * @return a CompletableFuture wrapping the list of StorageObject
+     */
+    default CompletableFuture<List<StorageObject>> getChildrenAsync(String key, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getChildren(key), executor);
+    }
+
+    /**
+     * delete an object asynchronously
+     *
+     * @param id       object id
+     * @param executor executor running the remote call
+     * @return a CompletableFuture wrapping true if object exists
+     */
+    default CompletableFuture<Boolean> deleteAsync(String id, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> delete(id), executor);
+    }
+
+    /**
+     * properties of store object, asynchronously
+     *
+     * @param storageObject      storageObject
+     * @param metadataProperties metadataProperties
+     * @param executor           executor running the remote call
+     * @return a CompletableFuture completed when properties are stored
+     */
+    default CompletableFuture<Void> updatePropertiesAsync(StorageObject storageObject, Map<String, Object> metadataProperties, Executor executor) {
+        return CompletableFuture.runAsync(() -> updateProperties(storageObject, metadataProperties), executor);
+    }
+
+    /**
+     * Link object asynchronously
+     *
+     * @param source   source
+     * @param target   target
+     * @param executor executor running the remote call
+     * @return a CompletableFuture completed when the node is copied
+     */
+    default CompletableFuture<Void> copyNodeAsync(StorageObject source, StorageObject target, Executor executor) {
+        return CompletableFuture.runAsync(() -> copyNode(source, target), executor);
+    }
+
     StoreType getStoreType();
 
     /**
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage;
+
+import it.cnr.si.spring.storage.config.StoragePropertyNames;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Read-only metadata of a StorageObject, sized for holding many objects in memory:
+ * <ul>
+ *     <li>property names are shared instances, the StoragePropertyNames and every name met up to MAX_NAMES</li>
+ *     <li>content length and last modification date are kept as primitives</li>
+ *     <li>equal lists of aspects are the same immutable instance</li>
+ * </ul>
+ */
+public final class StorageMetadata extends AbstractMap<String, Object> implements Serializable {
+    private static final long ABSENT = Long.MIN_VALUE;
+    private static final int MAX_NAMES = 4096, MAX_ASPECTS = 1024;
+    private static final String CONTENT_STREAM_LENGTH = StoragePropertyNames.CONTENT_STREAM_LENGTH.value();
+    private static final String LAST_MODIFIED = StoragePropertyNames.LAST_MODIFIED.value();
+    private static final String SECONDARY_OBJECT_TYPE_IDS = StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value();
+    private static final String[] NO_NAMES = new String[0];
+    private static final Object[] NO_VALUES = new Object[0];
+    private static final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+    private static final ConcurrentMap<List<String>, List<String>> aspects = new ConcurrentHashMap<List<String>, List<String>>();
+
+    static {
+        Arrays.stream(StoragePropertyNames.values())
+                .map(StoragePropertyNames::value)
+                .forEach(name -> names.put(name, name));
+    }
+
+    private final String[] propertyNames;
+    private final Object[] propertyValues;
+    private final long contentLength;
+    private final long lastModified;
+    private final List<String> secondaryObjectTypeIds;
+
+    private StorageMetadata(String[] propertyNames, Object[] propertyValues,
+                            long contentLength, long lastModified, List<String> secondaryObjectTypeIds) {
+        this.propertyNames = propertyNames;
+        this.propertyValues = propertyValues;
+        this.contentLength = contentLength;
+        this.lastModified = lastModified;
+        this.secondaryObjectTypeIds = secondaryObjectTypeIds;
+    }
+
+    /**
+     * @return metadata holding the same entries, values keep their type
+     */
+    public static StorageMetadata of(Map<String, ?> metadata) {
+        if (metadata instanceof StorageMetadata)
+            return (StorageMetadata) metadata;
+        long contentLength = ABSENT, lastModified = ABSENT;
+        List<String> secondaryObjectTypeIds = null;
+        List<String> propertyNames = new ArrayList<String>(metadata.size());
+        List<Object> propertyValues = new ArrayList<Object>(metadata.size());
+        for (Map.Entry<String, ?> entry : metadata.entrySet()) {
+            final String name = entry.getKey();
+            final Object value = entry.getValue();
+            if (name.equals(CONTENT_STREAM_LENGTH) && value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+                contentLength = ((BigInteger) value).longValue();
+            } else if (name.equals(LAST_MODIFIED) && isDefaultCalendar(value)) {
+                lastModified = ((Calendar) value).getTimeInMillis();
+            } else if (name.equals(SECONDARY_OBJECT_TYPE_IDS) && isStringList(value)) {
+                secondaryObjectTypeIds = intern((List<String>) value);
+            } else {
+                propertyNames.add(intern(name));
+                propertyValues.add(value);
+            }
+        }
+        return new StorageMetadata(
+                propertyNames.isEmpty() ? NO_NAMES : propertyNames.toArray(NO_NAMES),
+                propertyValues.isEmpty() ? NO_VALUES : propertyValues.toArray(),
+                contentLength, lastModified, secondaryObjectTypeIds);
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (CONTENT_STREAM_LENGTH.equals(key))
+            return contentLength == ABSENT ? getProperty(key) : BigInteger.valueOf(contentLength);
+        if (LAST_MODIFIED.equals(key))
+            return lastModified == ABSENT ? getProperty(key) : toCalendar(lastModified);
+        if (SECONDARY_OBJECT_TYPE_IDS.equals(key))
+            return secondaryObjectTypeIds == null ? getProperty(key) : secondaryObjectTypeIds;
+        return getProperty(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (CONTENT_STREAM_LENGTH.equals(key) && contentLength != ABSENT) ||
+                (LAST_MODIFIED.equals(key) && lastModified != ABSENT) ||
+                (SECONDARY_OBJECT_TYPE_IDS.equals(key) && secondaryObjectTypeIds != null) ||
+                indexOf(key) > -1;
+    }
+
+    @Override
+    public int size() {
+        return propertyNames.length +
+                (contentLength == ABSENT ? 0 : 1) +
+                (lastModified == ABSENT ? 0 : 1) +
+                (secondaryObjectTypeIds == null ? 0 : 1);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Set<Entry<String, Object>> entries = new LinkedHashSet<Entry<String, Object>>(size() * 2);
+        for (int i = 0; i < propertyNames.length; i++) {
+            entries.add(new SimpleImmutableEntry<String, Object>(propertyNames[i], propertyValues[i]));
+        }
+        if (contentLength != ABSENT)
+            entries.add(new SimpleImmutableEntry<String, Object>(CONTENT_STREAM_LENGTH, BigInteger.valueOf(contentLength)));
+        if (lastModified != ABSENT)
+            entries.add(new SimpleImmutableEntry<String, Object>(LAST_MODIFIED, toCalendar(lastModified)));
+        if (secondaryObjectTypeIds != null)
+            entries.add(new SimpleImmutableEntry<String, Object>(SECONDARY_OBJECT_TYPE_IDS, secondaryObjectTypeIds));
+        return Collections.unmodifiableSet(entries);
+    }
+
+    private Object getProperty(Object key) {
+        final int index = indexOf(key);
+        return index > -1 ? propertyValues[index] : null;
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < propertyNames.length; i++) {
+            if (propertyNames[i] == key || propertyNames[i].equals(key))
+                return i;
+        }
+        return -1;
+    }
+
+    private static String intern(String name) {
+        return Optional.ofNullable(names.get(name))
+                .orElseGet(() -> {
+                    if (names.size() >= MAX_NAMES)
+                        return name;
+                    return Optional.ofNullable(names.putIfAbsent(name, name)).orElse(name);
+                });
+    }
+
+    private static List<String> intern(List<String> list) {
+        return Optional.ofNullable(aspects.get(list))
+                .orElseGet(() -> {
+                    final List<String> immutable = Collections.unmodifiableList(new ArrayList<String>(list));
+                    if (aspects.size() >= MAX_ASPECTS)
+                        return immutable;
+                    return Optional.ofNullable(aspects.putIfAbsent(immutable, immutable)).orElse(immutable);
+                });
+    }
+
+    private static boolean isStringList(Object value) {
+        return value instanceof List && ((List<?>) value).stream().allMatch(String.class::isInstance);
+    }
+
+    /**
+     * only calendars that can be rebuilt identical from their instant are kept as primitives
+     */
+    private static boolean isDefaultCalendar(Object value) {
+        return value instanceof GregorianCalendar && value.equals(toCalendar(((Calendar) value).getTimeInMillis()));
+    }
+
+    private static Calendar toCalendar(long timeInMillis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeInMillis);
+        return calendar;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package it.cnr.si.spring.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Folders resolved by path, least recently used evicted past maxSize, each one valid for ttlMillis.
+ * A maxSize of 0 disables the cache.
+ */
+class StorageObjectCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+
+    StorageObjectCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * drivers accept paths with or without the leading and the trailing separator
+     */
+    static String normalize(String path) {
+        return Optional.ofNullable(path)
+                .map(s -> s.startsWith(StorageDriver.SUFFIX) ? s.substring(1) : s)
+                .map(s -> s.endsWith(StorageDriver.SUFFIX) ? s.substring(0, s.length() - 1) : s)
+                .orElse(path);
+    }
+
+    synchronized StorageObject get(String path) {
+        final String key = normalize(path);
+        return Optional.ofNullable(entries.get(key))
+                .filter(entry -> {
+                    if (entry.expiresAt > System.currentTimeMillis())
+                        return true;
+                    entries.remove(key);
+                    return false;
+                })
+                .map(entry -> entry.storageObject)
+                .orElse(null);
+    }
+
+    synchronized void put(String path, StorageObject storageObject) {
+        if (maxSize > 0 && storageObject != null)
+            entries.put(normalize(path), new Entry(storageObject, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * removes the object, whether identified by path or by key, and everything cached below it
+     */
+    synchronized void invalidate(String pathOrKey) {
+        if (pathOrKey == null || entries.isEmpty())
+            return;
+        final String normalized = normalize(pathOrKey);
+        final Set<String> paths = entries.entrySet().stream()
+                .filter(entry -> normalized.equals(normalize(entry.getValue().storageObject.getKey())))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        paths.add(normalized);
+        paths.forEach(path -> entries.keySet()
+                .removeIf(s -> path.isEmpty() || s.equals(path) || s.startsWith(path.concat(StorageDriver.SUFFIX))));
+    }
+
+    synchronized void invalidate(StorageObject storageObject) {
+        Optional.ofNullable(storageObject)
+                .ifPresent(so -> {
+                    invalidate(so.getPath());
+                    invalidate(so.getKey());
+                });
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private final StorageObject storageObject;
+        private final long expiresAt;
+
+        Entry(StorageObject storageObject, long expiresAt) {
+            this.storageObject = storageObject;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
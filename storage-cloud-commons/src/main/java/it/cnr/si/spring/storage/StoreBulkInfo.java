@@ -27,6 +27,9 @@ import org.springframework.stereotype.Service;
 
 import java.beans.IntrospectionException;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -37,10 +40,19 @@ import java.util.*;
  */
 @Service
 public class StoreBulkInfo {
-    private Map<Class<?>, String> cacheObjType = new Hashtable<Class<?>, String>();
-    private Map<Class<?>, Set<String>> cacheObjAspect = new Hashtable<Class<?>, Set<String>>();
-    private Map<Class<?>, Map<String, PropertyValue>> cacheObjPropertyDef = new Hashtable<Class<?>, Map<String, PropertyValue>>();
-    private Map<Class<?>, Map<String, PropertyValue>> cacheObjAspectPropertyDef = new Hashtable<Class<?>, Map<String, PropertyValue>>();
+    /**
+     * Computed once per bulk class, read without locks by every thread
+     */
+    private final ClassValue<BulkDescriptor> descriptors = new ClassValue<BulkDescriptor>() {
+        @Override
+        protected BulkDescriptor computeValue(Class<?> bulkClass) {
+            return new BulkDescriptor(
+                    Optional.ofNullable(bulkClass.getAnnotation(StorageType.class)).map(StorageType::name).orElse(null),
+                    Collections.unmodifiableList(new ArrayList<String>(getAspect(bulkClass))),
+                    Collections.unmodifiableMap(getPropertyDefinition(bulkClass)),
+                    Collections.unmodifiableMap(getAspectPropertyDefinition(bulkClass)));
+        }
+    };
 
     private List<Class<?>> getClassHierarchy(Class<?> targetClass, boolean reverse, boolean includeSelf) {
         List<Class<?>> hierarchy = new ArrayList<Class<?>>();
@@ -59,24 +71,22 @@ public class StoreBulkInfo {
     }
 
     public String getType(Serializable oggettoBulk) {
-        if (!(oggettoBulk instanceof StorageTypeName) && cacheObjType.containsKey(oggettoBulk.getClass()))
-            return cacheObjType.get(oggettoBulk.getClass());
         if (oggettoBulk instanceof StorageTypeName)
-            cacheObjType.put(oggettoBulk.getClass(), ((StorageTypeName) oggettoBulk).getTypeName());
-        else {
-            StorageType storageType = oggettoBulk.getClass().getAnnotation(StorageType.class);
-            if (storageType == null && !(oggettoBulk instanceof StorageTypeName))
-                throw new RuntimeException("Type is missing!");
-            cacheObjType.put(oggettoBulk.getClass(), storageType.name());
-        }
-        return cacheObjType.get(oggettoBulk.getClass());
+            return ((StorageTypeName) oggettoBulk).getTypeName();
+        return Optional.ofNullable(descriptors.get(oggettoBulk.getClass()).type)
+                .orElseThrow(() -> new RuntimeException("Type is missing!"));
     }
 
+    /**
+     * @return the aspects of the bulk class, the list is shared and cannot be modified
+     */
     public List<String> getAspect(Serializable oggettoBulk) throws StorageException {
-        if (cacheObjAspect.containsKey(oggettoBulk.getClass()))
-            return new ArrayList(cacheObjAspect.get(oggettoBulk.getClass()));
+        return descriptors.get(oggettoBulk.getClass()).aspects;
+    }
+
+    private Set<String> getAspect(Class<?> bulkClass) {
         Set<String> results = new HashSet<String>();
-        List<Class<?>> classHierarchy = getClassHierarchy(oggettoBulk.getClass(), false, true);
+        List<Class<?>> classHierarchy = getClassHierarchy(bulkClass, false, true);
         for (Class<?> class1 : classHierarchy) {
             List<Field> attributi = Arrays.asList(class1.getDeclaredFields());
             for (Field field : attributi) {
@@ -91,72 +101,75 @@ public class StoreBulkInfo {
                 }
             }
         }
-        cacheObjAspect.put(oggettoBulk.getClass(), results);
-        return new ArrayList(cacheObjAspect.get(oggettoBulk.getClass()));
+        return results;
     }
 
     public Map<String, Object> getPropertyValue(Serializable oggettoBulk) {
-        return getPropertyDefinition(oggettoBulk).entrySet().stream()
-                .collect(
-                        HashMap::new, (m, v) -> m.put(v.getKey(), v.getValue().getValue(oggettoBulk)), HashMap::putAll
-                );
+        return getValues(getPropertyDefinition(oggettoBulk), oggettoBulk);
+    }
+
+    private Map<String, Object> getValues(Map<String, PropertyValue> definition, Serializable oggettoBulk) {
+        Map<String, Object> result = new HashMap<String, Object>((int) (definition.size() / 0.75f) + 1);
+        for (Map.Entry<String, PropertyValue> entry : definition.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getValue(oggettoBulk));
+        }
+        return result;
     }
 
     public Map<String, PropertyValue> getPropertyDefinition(Serializable oggettoBulk) {
-        if (cacheObjPropertyDef.containsKey(oggettoBulk.getClass()))
-            return cacheObjPropertyDef.get(oggettoBulk.getClass());
+        return descriptors.get(oggettoBulk.getClass()).propertyDefinition;
+    }
+
+    private Map<String, PropertyValue> getPropertyDefinition(Class<?> bulkClass) {
         Map<String, PropertyValue> results = new HashMap<String, PropertyValue>();
-        List<Class<?>> classHierarchy = getClassHierarchy(oggettoBulk.getClass(), false, true);
+        List<Class<?>> classHierarchy = getClassHierarchy(bulkClass, false, true);
         for (Class<?> class1 : classHierarchy) {
             List<Field> attributi = Arrays.asList(class1.getDeclaredFields());
             for (Field field : attributi) {
                 if (field.isAnnotationPresent(StorageProperty.class)) {
-                    results.put(field.getAnnotation(StorageProperty.class).name(), new PropertyValue(field, null));
+                    results.put(field.getAnnotation(StorageProperty.class).name(), new PropertyValue(bulkClass, field, null));
                 }
                 if (field.isAnnotationPresent(StorageProperties.class)) {
                     List<StorageProperty> properties = Arrays.asList(field.getAnnotation(StorageProperties.class).property());
                     for (StorageProperty storageProperty : properties) {
-                        results.put(storageProperty.name(), new PropertyValue(field, null));
+                        results.put(storageProperty.name(), new PropertyValue(bulkClass, field, null));
                     }
                 }
             }
             List<Method> methods = Arrays.asList(class1.getMethods());
             for (Method method : methods) {
                 if (method.isAnnotationPresent(StorageProperty.class)) {
-                    results.put(method.getAnnotation(StorageProperty.class).name(), new PropertyValue(null, method));
+                    results.put(method.getAnnotation(StorageProperty.class).name(), new PropertyValue(bulkClass, null, method));
                 }
                 if (method.isAnnotationPresent(StorageProperties.class)) {
                     List<StorageProperty> properties = Arrays.asList(method.getAnnotation(StorageProperties.class).property());
                     for (StorageProperty storageProperty : properties) {
-                        results.put(storageProperty.name(), new PropertyValue(null, method));
+                        results.put(storageProperty.name(), new PropertyValue(bulkClass, null, method));
                     }
                 }
             }
         }
-        cacheObjPropertyDef.put(oggettoBulk.getClass(), results);
-        return cacheObjPropertyDef.get(oggettoBulk.getClass());
+        return results;
     }
 
     public Map<String, Object> getAspectPropertyValue(Serializable oggettoBulk) {
-        return getAspectPropertyDefinition(oggettoBulk).entrySet().stream()
-                .collect(
-                        HashMap::new, (m, v) -> m.put(v.getKey(), v.getValue().getValue(oggettoBulk)), HashMap::putAll
-                );
-
+        return getValues(getAspectPropertyDefinition(oggettoBulk), oggettoBulk);
     }
 
     public Map<String, PropertyValue> getAspectPropertyDefinition(Serializable oggettoBulk) {
-        if (cacheObjAspectPropertyDef.containsKey(oggettoBulk.getClass()))
-            return cacheObjAspectPropertyDef.get(oggettoBulk.getClass());
+        return descriptors.get(oggettoBulk.getClass()).aspectPropertyDefinition;
+    }
+
+    private Map<String, PropertyValue> getAspectPropertyDefinition(Class<?> bulkClass) {
         Map<String, PropertyValue> results = new HashMap<String, PropertyValue>();
-        List<Class<?>> classHierarchy = getClassHierarchy(oggettoBulk.getClass(), false, true);
+        List<Class<?>> classHierarchy = getClassHierarchy(bulkClass, false, true);
         for (Class<?> class1 : classHierarchy) {
             List<Field> attributi = Arrays.asList(class1.getDeclaredFields());
             for (Field field : attributi) {
                 if (field.isAnnotationPresent(StoragePolicy.class)) {
                     List<StorageProperty> properties = Arrays.asList(field.getAnnotation(StoragePolicy.class).property());
                     for (StorageProperty storageProperty : properties) {
-                        results.put(storageProperty.name(), new PropertyValue(field, null));
+                        results.put(storageProperty.name(), new PropertyValue(bulkClass, field, null));
                     }
                 }
             }
@@ -165,44 +178,79 @@ public class StoreBulkInfo {
                 if (method.isAnnotationPresent(StoragePolicy.class)) {
                     List<StorageProperty> properties = Arrays.asList(method.getAnnotation(StoragePolicy.class).property());
                     for (StorageProperty storageProperty : properties) {
-                        results.put(storageProperty.name(), new PropertyValue(null, method));
+                        results.put(storageProperty.name(), new PropertyValue(bulkClass, null, method));
                     }
                 }
             }
         }
-        cacheObjAspectPropertyDef.put(oggettoBulk.getClass(), results);
-        return cacheObjAspectPropertyDef.get(oggettoBulk.getClass());
+        return results;
+    }
+
+    private static class BulkDescriptor {
+        private final String type;
+        private final List<String> aspects;
+        private final Map<String, PropertyValue> propertyDefinition;
+        private final Map<String, PropertyValue> aspectPropertyDefinition;
+
+        BulkDescriptor(String type, List<String> aspects, Map<String, PropertyValue> propertyDefinition,
+                       Map<String, PropertyValue> aspectPropertyDefinition) {
+            this.type = type;
+            this.aspects = aspects;
+            this.propertyDefinition = propertyDefinition;
+            this.aspectPropertyDefinition = aspectPropertyDefinition;
+        }
     }
 
-    private class PropertyValue {
-        private final Field field;
-        private final Method method;
+    /**
+     * Getter of a property compiled once per bulk class: the bean read method (or the public field) named after
+     * the annotated field, the annotated method itself, SelfIntrospector otherwise
+     */
+    private static class PropertyValue {
+        private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+        private final MethodHandle getter;
+        /**
+         * raised when the value is read, as the reflective access used to do
+         */
+        private final IllegalArgumentException failure;
 
-        public PropertyValue(Field field, Method method) {
+        public PropertyValue(Class<?> bulkClass, Field field, Method method) {
             super();
-            this.field = field;
-            this.method = method;
+            MethodHandle getter = null;
+            IllegalArgumentException failure = null;
+            try {
+                getter = method != null ?
+                        unreflect(method).asType(GETTER_TYPE) :
+                        Introspector.getPropertyGetter(bulkClass, field.getName());
+            } catch (IntrospectionException | IllegalAccessError e) {
+                failure = new IllegalArgumentException(e);
+            } catch (IllegalArgumentException e) {
+                failure = e;
+            }
+            this.getter = getter;
+            this.failure = failure;
+        }
+
+        private static MethodHandle unreflect(Method method) {
+            try {
+                return MethodHandles.publicLookup().unreflect(method);
+            } catch (IllegalAccessException _ex) {
+                try {
+                    method.setAccessible(true);
+                    return MethodHandles.lookup().unreflect(method);
+                } catch (IllegalAccessException | RuntimeException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
         }
 
         public Object getValue(Serializable oggettoBulk) {
-            return Optional.ofNullable(field)
-                    .map(field1 -> {
-                        try {
-                            return Introspector.getPropertyValue(oggettoBulk, field1.getName());
-                        } catch (IntrospectionException | InvocationTargetException e) {
-                            throw new IllegalArgumentException(e);
-                        }
-                    }).orElse(
-                            Optional.ofNullable(method)
-                                    .map(method1 -> {
-                                        try {
-                                            return Introspector.invoke(oggettoBulk, method1);
-                                        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                                            throw new IllegalArgumentException(e);
-                                        }
-                                    })
-                                    .orElse(null)
-                    );
+            if (failure != null)
+                throw failure;
+            try {
+                return getter.invokeExact((Object) oggettoBulk);
+            } catch (Throwable e) {
+                throw new IllegalArgumentException(new InvocationTargetException(e));
+            }
         }
 
     }
@@ -18,16 +18,28 @@
 package it.cnr.si.spring.storage;
 
 import it.cnr.si.spring.storage.config.StoragePropertyNames;
+import it.cnr.si.util.DaemonThreadFactory;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
+import jakarta.annotation.PostConstruct;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -43,6 +55,49 @@ public class StoreService {
     private StorageDriver storageDriver;
     @Autowired
     private StoreBulkInfo storeBulkInfo;
+    /**
+     * Executor of the *Async methods, a bean named storageAsyncExecutor replaces the default one
+     */
+    @Autowired(required = false)
+    @Qualifier("storageAsyncExecutor")
+    private Executor storageAsyncExecutor;
+    @Value("${cnr.storage.async.poolSize:64}")
+    private int asyncPoolSize;
+    @Value("${cnr.storage.download.rangeSize:8388608}")
+    private int downloadRangeSize;
+    @Value("${cnr.storage.download.parallelism:4}")
+    private int downloadParallelism;
+    private ParallelRangeDownloader parallelRangeDownloader;
+    @Value("${cnr.storage.pathCache.size:1000}")
+    private int pathCacheSize;
+    @Value("${cnr.storage.pathCache.ttl:60}")
+    private int pathCacheTtl;
+    /**
+     * folders looked up by path, invalidated before and after the changes made through this service
+     * so that a lookup running during the change cannot cache the previous state
+     */
+    private StorageObjectCache pathCache;
+    private final ConcurrentMap<String, CompletableFuture<String>> folderCreations = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (storageAsyncExecutor == null)
+            storageAsyncExecutor = defaultAsyncExecutor(asyncPoolSize);
+        parallelRangeDownloader = new ParallelRangeDownloader(storageDriver, storageAsyncExecutor,
+                downloadRangeSize, downloadParallelism);
+        pathCache = new StorageObjectCache(pathCacheSize, TimeUnit.SECONDS.toMillis(pathCacheTtl));
+    }
+
+    /**
+     * Virtual threads when the JVM provides them, otherwise a fixed pool of daemon threads
+     */
+    private static Executor defaultAsyncExecutor(int poolSize) {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException _ex) {
+            return Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory("storage-async-"));
+        }
+    }
 
     public String sanitizeFilename(String name) {
         name = name.trim();
@@ -69,29 +124,30 @@ public class StoreService {
     }
 
     public StorageObject getStorageObjectByPath(String path, boolean isFolder, boolean create) {
-        return Optional.ofNullable(storageDriver.getObjectByPath(path, isFolder))
+        return Optional.ofNullable(isFolder ? getFolderByPath(path) : storageDriver.getObjectByPath(path, false))
                 .orElseGet(() -> {
                     if (!create) return null;
-                    final List<String> names = Arrays.asList(path.split(StorageDriver.SUFFIX));
-                    AtomicInteger atomicInteger = new AtomicInteger(0);
-                    names.stream()
-                            .filter(name -> name.length() > 0)
-                            .forEach(name -> {
-                                atomicInteger.getAndIncrement();
-                                createFolderIfNotPresent(
-                                        Optional.ofNullable(names.stream()
-                                                .limit(atomicInteger.longValue())
-                                                .reduce((a, b) -> a + StorageDriver.SUFFIX + b)
-                                                .get())
-                                                .filter(s -> s.length() > 0)
-                                                .orElse(StorageDriver.SUFFIX)
-                                        , name, null, null);
-                            });
-                    if (create) {
-                        return Optional.ofNullable(storageDriver.getObjectByPath(path, true))
-                                .orElse(new StorageObject(path, path, Collections.emptyMap()));
+                    String parentPath = null;
+                    for (String name : path.split(StorageDriver.SUFFIX)) {
+                        if (name.length() > 0)
+                            createFolderIfNotPresent(
+                                    Optional.ofNullable(parentPath)
+                                            .filter(s -> s.length() > 0)
+                                            .orElse(StorageDriver.SUFFIX)
+                                    , name, null, null);
+                        parentPath = parentPath == null ? name : parentPath.concat(StorageDriver.SUFFIX).concat(name);
                     }
-                    return storageDriver.getObjectByPath(path, true);
+                    return Optional.ofNullable(getFolderByPath(path))
+                            .orElse(new StorageObject(path, path, Collections.emptyMap()));
+                });
+    }
+
+    private StorageObject getFolderByPath(String path) {
+        return Optional.ofNullable(pathCache.get(path))
+                .orElseGet(() -> {
+                    StorageObject storageObject = storageDriver.getObjectByPath(path, true);
+                    pathCache.put(path, storageObject);
+                    return storageObject;
                 });
     }
 
@@ -107,6 +163,10 @@ public class StoreService {
         return storageDriver.getObject(key);
     }
 
+    public CompletableFuture<StorageObject> getStorageObjectBykeyAsync(String key) {
+        return storageDriver.getObjectAsync(key, storageAsyncExecutor);
+    }
+
     public StorageObject getStorageObjectBykey(String key, UsernamePasswordCredentials customCredentials) {
         return storageDriver.getObject(key, customCredentials);
     }
@@ -123,7 +183,9 @@ public class StoreService {
         if (oggettoBulk != null) {
             Map<String, Object> metadataProperties = new HashMap<String, Object>();
             List<String> aspectsToAdd = new ArrayList<String>();
-            List<String> aspects =(List<String>)storageObject.getPropertyValue(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value());
+            List<String> aspects = new ArrayList<String>(
+                    Optional.ofNullable(storageObject.<List<String>>getPropertyValue(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value()))
+                            .orElse(Collections.emptyList()));
 
 
             Optional.ofNullable(storeBulkInfo.getType(oggettoBulk))
@@ -131,11 +193,14 @@ public class StoreService {
             metadataProperties.putAll(storeBulkInfo.getPropertyValue(oggettoBulk));
             aspectsToAdd.addAll(storeBulkInfo.getAspect(oggettoBulk));
             metadataProperties.putAll(storeBulkInfo.getAspectPropertyValue(oggettoBulk));
-            if( aspects.isEmpty())
-                aspects= new ArrayList<String>();
             aspects.addAll(aspectsToAdd);
             metadataProperties.put(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value(), aspects);
-            storageDriver.updateProperties(storageObject, metadataProperties);
+            pathCache.invalidate(storageObject);
+            try {
+                storageDriver.updateProperties(storageObject, metadataProperties);
+            } finally {
+                pathCache.invalidate(storageObject);
+            }
         }
         return storageObject.getPath();
     }
@@ -172,11 +237,41 @@ public class StoreService {
     }
 
     public String createFolderIfNotPresent(String path, String name, Map<String, Object> metadataProperties) {
-        return Optional.ofNullable(storageDriver.getObjectByPath(
-                path.concat(path.equals(StorageDriver.SUFFIX) ? "" : StorageDriver.SUFFIX).concat(name), true
-        ))
+        final String folderPath = path.concat(path.equals(StorageDriver.SUFFIX) ? "" : StorageDriver.SUFFIX).concat(name);
+        return Optional.ofNullable(getFolderByPath(folderPath))
                 .map(StorageObject::getPath)
-                .orElseGet(() -> storageDriver.createFolder(path, name, metadataProperties).getPath());
+                .orElseGet(() -> createFolder(path, name, folderPath, metadataProperties));
+    }
+
+    /**
+     * Concurrent callers for the same folder share the creation started by the first one,
+     * and its failure as well
+     */
+    private String createFolder(String path, String name, String folderPath, Map<String, Object> metadataProperties) {
+        final String key = StorageObjectCache.normalize(folderPath);
+        final CompletableFuture<String> creation = new CompletableFuture<>();
+        final CompletableFuture<String> inFlight = folderCreations.putIfAbsent(key, creation);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new StorageException(StorageException.Type.GENERIC, e.getCause());
+            }
+        }
+        try {
+            final String result = Optional.ofNullable(getFolderByPath(folderPath))
+                    .map(StorageObject::getPath)
+                    .orElseGet(() -> storageDriver.createFolder(path, name, metadataProperties).getPath());
+            creation.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            creation.completeExceptionally(e);
+            throw e;
+        } finally {
+            folderCreations.remove(key, creation);
+        }
     }
 
     public Boolean delete(StorageObject storageObject) {
@@ -185,7 +280,30 @@ public class StoreService {
 
     public Boolean delete(String key) {
         Assert.notNull(key, "Key cannot be null");
-        return storageDriver.delete(key);
+        pathCache.invalidate(key);
+        try {
+            return storageDriver.delete(key);
+        } finally {
+            pathCache.invalidate(key);
+        }
+    }
+
+    public Map<String, Boolean> deleteAll(Collection<String> keys) {
+        Assert.notNull(keys, "Keys cannot be null");
+        Assert.noNullElements(keys, "Key cannot be null");
+        keys.forEach(pathCache::invalidate);
+        try {
+            return storageDriver.deleteAll(keys);
+        } finally {
+            keys.forEach(pathCache::invalidate);
+        }
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(String key) {
+        Assert.notNull(key, "Key cannot be null");
+        pathCache.invalidate(key);
+        return storageDriver.deleteAsync(key, storageAsyncExecutor)
+                .whenComplete((deleted, throwable) -> pathCache.invalidate(key));
     }
 
     public InputStream getResource(StorageObject storageObject) {
@@ -196,6 +314,31 @@ public class StoreService {
         return storageDriver.getInputStream(key);
     }
 
+    /**
+     * Large objects are read as ranges downloaded in parallel, see cnr.storage.download.*
+     */
+    public InputStream getResourceInParallel(StorageObject storageObject) {
+        return Optional.ofNullable(storageObject.<Number>getPropertyValue(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()))
+                .map(contentLength -> parallelRangeDownloader.download(storageObject.getKey(), contentLength.longValue()))
+                .orElseGet(() -> getResource(storageObject));
+    }
+
+    public void copyResource(StorageObject storageObject, FileChannel target) {
+        Number contentLength = Optional.ofNullable(storageObject.<Number>getPropertyValue(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()))
+                .orElseThrow(() -> new StorageException(StorageException.Type.GENERIC,
+                        "Content length of " + storageObject.getKey() + " is unknown"));
+        parallelRangeDownloader.download(storageObject.getKey(), contentLength.longValue(), target);
+    }
+
+    /**
+     * Writes the content to the channel, without copies through the heap when the driver supports it
+     *
+     * @return number of bytes written
+     */
+    public long transferResource(String key, WritableByteChannel target) {
+        return storageDriver.transferTo(key, target);
+    }
+
     public InputStream getResource(String key, String versionId) {
         return storageDriver.getInputStream(key, versionId);
     }
@@ -218,6 +361,10 @@ public class StoreService {
         return storageDriver.createDocument(inputStream, contentType, metadataProperties, parentObject, parentObject.getPath(), false);
     }
 
+    public CompletableFuture<StorageObject> storeSimpleDocumentAsync(InputStream inputStream, String contentType, Map<String, Object> metadataProperties, StorageObject parentObject) {
+        return storageDriver.createDocumentAsync(inputStream, contentType, metadataProperties, parentObject, parentObject.getPath(), false, storageAsyncExecutor);
+    }
+
     public StorageObject storeSimpleDocument(Serializable oggettoBulk, InputStream inputStream, String contentType, String name,
                                              String path, boolean makeVersionable, StorageDriver.Permission... permissions) throws StorageException {
         return storeSimpleDocument(oggettoBulk, inputStream, contentType, name, path, storeBulkInfo.getType(oggettoBulk), makeVersionable, permissions);
@@ -238,7 +385,7 @@ public class StoreService {
                             aspects.addAll(storeBulkInfo.getAspect(oggettoBulk));
                             return aspects;
                         })
-                        .orElse(storeBulkInfo.getAspect(oggettoBulk))
+                        .orElse(new ArrayList<String>(storeBulkInfo.getAspect(oggettoBulk)))
         );
         metadataProperties.putAll(storeBulkInfo.getAspectPropertyValue(oggettoBulk));
         return storageDriver.createDocument(inputStream, contentType, metadataProperties, parentObject, path, makeVersionable, permissions);
@@ -260,7 +407,18 @@ public class StoreService {
     }
 
     public void updateProperties(Map<String, Object> metadataProperties, StorageObject storageObject) throws StorageException {
-        storageDriver.updateProperties(storageObject, metadataProperties);
+        pathCache.invalidate(storageObject);
+        try {
+            storageDriver.updateProperties(storageObject, metadataProperties);
+        } finally {
+            pathCache.invalidate(storageObject);
+        }
+    }
+
+    public CompletableFuture<Void> updatePropertiesAsync(Map<String, Object> metadataProperties, StorageObject storageObject) {
+        pathCache.invalidate(storageObject);
+        return storageDriver.updatePropertiesAsync(storageObject, metadataProperties, storageAsyncExecutor)
+                .whenComplete((result, throwable) -> pathCache.invalidate(storageObject));
     }
 
     public void updateProperties(Serializable oggettoBulk, StorageObject storageObject) throws StorageException {
@@ -274,7 +432,7 @@ public class StoreService {
                             aspects.addAll(storeBulkInfo.getAspect(oggettoBulk));
                             return aspects;
                         })
-                        .orElse(storeBulkInfo.getAspect(oggettoBulk))
+                        .orElse(new ArrayList<String>(storeBulkInfo.getAspect(oggettoBulk)))
         );
         metadataProperties.putAll(storeBulkInfo.getAspectPropertyValue(oggettoBulk));
         updateProperties(metadataProperties, storageObject);
@@ -284,6 +442,19 @@ public class StoreService {
         return storageDriver.getChildren(key);
     }
 
+    public StoragePage getChildrenPage(String key, int pageSize, String continuationToken) {
+        Assert.isTrue(pageSize > 0, "Page size must be positive");
+        return storageDriver.getChildrenPage(key, pageSize, continuationToken);
+    }
+
+    public Stream<StorageObject> streamChildren(String key) {
+        return storageDriver.streamChildren(key);
+    }
+
+    public CompletableFuture<List<StorageObject>> getChildrenAsync(String key) {
+        return storageDriver.getChildrenAsync(key, storageAsyncExecutor);
+    }
+
     public List<StorageObject> getChildren(String key, int depth) {
         return storageDriver.getChildren(key, depth);
     }
@@ -326,6 +497,7 @@ public class StoreService {
     public void removeAspect(StorageObject storageObject, String aspect) {
         List<String> aspects =
                 Optional.ofNullable(storageObject.<List<String>>getPropertyValue(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value()))
+                        .map(list -> new ArrayList(list))
                         .orElse(new ArrayList<String>());
         aspects.remove(aspect);
         updateProperties(
@@ -339,6 +511,10 @@ public class StoreService {
         storageDriver.copyNode(source, target);
     }
 
+    public CompletableFuture<Void> copyNodeAsync(StorageObject source, StorageObject target) {
+        return storageDriver.copyNodeAsync(source, target, storageAsyncExecutor);
+    }
+
     public void addConsumerToEveryone(StorageObject storageObject) {
         addAcl(storageObject, Collections.singletonMap("GROUP_EVERYONE", StorageDriver.ACLType.Consumer));
     }
@@ -26,6 +26,7 @@ import it.cnr.si.spring.storage.config.StoragePropertyNames;
 
 import jakarta.activation.MimetypesFileTypeMap;
 import java.io.*;
+import java.nio.file.Path;
 
 @StorageType(name = "cmis:document")
 public class StorageFile implements Serializable {
@@ -33,7 +34,7 @@ public class StorageFile implements Serializable {
 
     private String contentType;
     private String fileName;
-    private byte[] bytes;
+    private StorageFileContent content;
 
     private String description;
     private String title;
@@ -53,29 +54,39 @@ public class StorageFile implements Serializable {
      * @param originalName the name of the file as declared by the users browser
      */
     public StorageFile(byte[] bytes, String contentType, String originalName) {
-        this.bytes = bytes;
+        this(bytes == null ? null : StorageFileContent.of(bytes), contentType, originalName);
+    }
+
+    /**
+     * The stream is read, and closed, right away: up to {@link StorageFileContent#SPOOL_THRESHOLD} bytes are kept
+     * in memory, larger contents go to a temporary file
+     *
+     * @throws UncheckedIOException if the stream cannot be read
+     */
+    public StorageFile(InputStream inputStream, String contentType, String originalName) {
+        this(spool(inputStream), contentType, originalName);
+    }
+
+    /**
+     * @param path read only when the content is requested
+     */
+    public StorageFile(Path path, String contentType, String originalName) {
+        this(StorageFileContent.of(path), contentType, originalName);
+    }
+
+    public StorageFile(StorageFileContent content, String contentType, String originalName) {
+        this.content = content;
         this.contentType = contentType;
         this.fileName = originalName;
         this.storageObject = null;
     }
 
-    public StorageFile(InputStream inputStream, String contentType, String originalName) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private static StorageFileContent spool(InputStream inputStream) {
         try {
-            try {
-                int c;
-                while ((c = inputStream.read()) != -1) {
-                    baos.write(c);
-                }
-            } finally {
-                inputStream.close();
-            }
+            return StorageFileContent.spool(inputStream, StorageFileContent.SPOOL_THRESHOLD);
         } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        this.bytes = baos.toByteArray();
-        this.contentType = contentType;
-        this.fileName = originalName;
-        this.storageObject = null;
     }
 
     public StorageFile(StorageObject storageObject) {
@@ -88,11 +99,20 @@ public class StorageFile implements Serializable {
     }
 
     public StorageFile(File file, String contentType, String originalName) throws IOException {
-        this(new FileInputStream(file), contentType != null ? contentType : new MimetypesFileTypeMap().getContentType(file), originalName);
+        this(readable(file), contentType != null ? contentType : new MimetypesFileTypeMap().getContentType(file), originalName);
     }
 
     public StorageFile(File file, String originalName) throws IOException {
-        this(new FileInputStream(file), new MimetypesFileTypeMap().getContentType(file), originalName);
+        this(readable(file), new MimetypesFileTypeMap().getContentType(file), originalName);
+    }
+
+    /**
+     * fails as opening the file would
+     */
+    private static Path readable(File file) throws IOException {
+        if (!file.isFile() || !file.canRead())
+            throw new FileNotFoundException(file.getPath());
+        return file.toPath();
     }
 
     public StorageObject getStorageObject() {
@@ -132,12 +152,20 @@ public class StorageFile implements Serializable {
     }
 
     /**
-     * Gets an input stream to read from the file uploaded
+     * Gets the whole content in memory, reading it from its source when it is not already there
      *
      * @return array of byte
      */
     public byte[] getBytes() {
-        return bytes;
+        return content == null ? null : content.getBytes();
+    }
+
+    public StorageFileContent getContent() {
+        return content;
+    }
+
+    public void setContent(StorageFileContent content) {
+        this.content = content;
     }
 
     @StoragePolicy(name = "P:cm:titled", property = @StorageProperty(name = "cm:description"))
@@ -168,8 +196,8 @@ public class StorageFile implements Serializable {
     }
 
     public InputStream getInputStream() throws IOException {
-        if (getBytes() != null && getBytes().length > 0)
-            return new ByteArrayInputStream(getBytes());
+        if (content != null && content.getLength() != 0)
+            return content.getInputStream();
         return null;
     }
 
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage.bulk;
+
+import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Content of a {@link StorageFile}: an array in memory, a file read when it is needed,
+ * a stream spooled to a temporary file past a threshold or a stream handed over as it is.
+ */
+public interface StorageFileContent extends Serializable {
+
+    /**
+     * Streams read by {@link StorageFile#StorageFile(InputStream, String, String)} stay in memory up to this size
+     */
+    int SPOOL_THRESHOLD = 1024 * 1024;
+
+    /**
+     * @return a new stream over the content, null if a passthrough content has already been read
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return the length in bytes, -1 when not known in advance
+     */
+    long getLength();
+
+    /**
+     * @return the whole content in memory, read from its source when needed
+     */
+    default byte[] getBytes() {
+        try (InputStream inputStream = getInputStream()) {
+            return inputStream == null ? null : inputStream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static StorageFileContent of(byte[] bytes) {
+        return new Bytes(bytes);
+    }
+
+    /**
+     * @param path file opened anew at every {@link #getInputStream()}
+     */
+    static StorageFileContent of(Path path) {
+        return new PathContent(path);
+    }
+
+    /**
+     * Reads the stream, and closes it, keeping up to threshold bytes in memory and spilling the rest to a temporary file
+     */
+    static StorageFileContent spool(InputStream inputStream, int threshold) throws IOException {
+        try (InputStream input = inputStream) {
+            byte[] buffer = input.readNBytes(threshold);
+            if (buffer.length < threshold)
+                return new Bytes(buffer);
+            int next = input.read();
+            if (next == -1)
+                return new Bytes(buffer);
+            Path temp = Files.createTempFile("storage-file", ".tmp");
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                output.write(buffer);
+                output.write(next);
+                input.transferTo(output);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            return new Spooled(temp);
+        }
+    }
+
+    /**
+     * @param inputStream returned, once, as it is: nothing is buffered
+     */
+    static StorageFileContent passthrough(InputStream inputStream) {
+        return new Passthrough(inputStream);
+    }
+
+    final class Bytes implements StorageFileContent {
+        private static final long serialVersionUID = 1L;
+        private final byte[] bytes;
+
+        private Bytes(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public long getLength() {
+            return bytes.length;
+        }
+
+        @Override
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * A file read on demand; serialized as an array, the file may not exist where the object is deserialized
+     */
+    final class PathContent implements StorageFileContent {
+        private static final long serialVersionUID = 1L;
+        private final String path;
+
+        private PathContent(Path path) {
+            this.path = path.toString();
+        }
+
+        public Path getPath() {
+            return Path.of(path);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Channels.newInputStream(FileChannel.open(getPath(), StandardOpenOption.READ));
+        }
+
+        @Override
+        public long getLength() {
+            try {
+                return Files.size(getPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Object writeReplace() {
+            return new Bytes(getBytes());
+        }
+    }
+
+    /**
+     * A temporary file, deleted once the content is no longer referenced; serialized as an array
+     */
+    final class Spooled implements StorageFileContent {
+        private static final long serialVersionUID = 1L;
+        private static final Cleaner CLEANER = Cleaner.create();
+        private final transient Path path;
+
+        private Spooled(Path path) {
+            this.path = path;
+            final String temp = path.toString();
+            CLEANER.register(this, () -> {
+                try {
+                    Files.deleteIfExists(Path.of(temp));
+                } catch (IOException _ex) {
+                    Path.of(temp).toFile().deleteOnExit();
+                }
+            });
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+        }
+
+        @Override
+        public long getLength() {
+            try {
+                return Files.size(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Object writeReplace() {
+            return new Bytes(getBytes());
+        }
+    }
+
+    final class Passthrough implements StorageFileContent {
+        private static final long serialVersionUID = 1L;
+        private final transient AtomicReference<InputStream> inputStream;
+
+        private Passthrough(InputStream inputStream) {
+            this.inputStream = new AtomicReference<InputStream>(inputStream);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream == null ? null : inputStream.getAndSet(null);
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+    }
+}
@@ -20,78 +20,190 @@ package it.cnr.si.util;
 import java.beans.IntrospectionException;
 import java.beans.PropertyDescriptor;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Hashtable;
-import java.util.StringTokenizer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Reads bean properties, also along dotted paths (a.b.c).
+ * Getters are MethodHandles resolved once per class and property, paths are split once per class and path,
+ * every segment remembers the getter of the last class it met: the read path takes no lock.
+ */
 public class Introspector implements Serializable {
-    private static Hashtable properties = new Hashtable();
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodHandle SELF_INTROSPECTOR_GETTER;
+    private static final ClassValue<ClassGetters> getters = new ClassValue<ClassGetters>() {
+        @Override
+        protected ClassGetters computeValue(Class<?> class1) {
+            return new ClassGetters(class1);
+        }
+    };
+    private static final ClassValue<ConcurrentMap<String, PropertyPath>> paths = new ClassValue<ConcurrentMap<String, PropertyPath>>() {
+        @Override
+        protected ConcurrentMap<String, PropertyPath> computeValue(Class<?> class1) {
+            return new ConcurrentHashMap<String, PropertyPath>();
+        }
+    };
 
+    static {
+        try {
+            SELF_INTROSPECTOR_GETTER = MethodHandles.publicLookup().findVirtual(SelfIntrospector.class, "getPropertyValue",
+                    MethodType.methodType(Object.class, String.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     public static Object getPropertyValue(Object obj, String s)
             throws IntrospectionException, InvocationTargetException {
-        if (s == null)
+        if (s == null || obj == null)
             return obj;
+        return paths.get(obj.getClass())
+                .computeIfAbsent(s, PropertyPath::new)
+                .getValue(obj);
+    }
+
+    /**
+     * @return the getter of the property s of class1, typed (Object)Object: the bean read method,
+     * the public field or SelfIntrospector.getPropertyValue
+     * @throws IntrospectionException when class1 has no such property
+     */
+    public static MethodHandle getPropertyGetter(Class<?> class1, String s) throws IntrospectionException {
+        MethodHandle getter = getters.get(class1).getter(s);
+        if (getter != null)
+            return getter;
+        if (SelfIntrospector.class.isAssignableFrom(class1))
+            return MethodHandles.insertArguments(SELF_INTROSPECTOR_GETTER, 1, s).asType(GETTER_TYPE);
+        throw new IntrospectionException(class1 + " non possiede la propriet\340 " + s);
+    }
+
+    public static Object invoke(Object obj, Method method, Object... aobj)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (method == null)
+            throw new NoSuchMethodException("No method in class " + obj.getClass() + " with parameters specified.");
+        else
+            return method.invoke(obj, aobj);
+    }
+
+    private static Object invokeGetter(MethodHandle getter, Object obj) throws InvocationTargetException {
         try {
-            for (StringTokenizer stringtokenizer = new StringTokenizer(s, "."); stringtokenizer.hasMoreElements(); ) {
-                String s1 = stringtokenizer.nextToken();
-                if (obj == null)
-                    return null;
-                PropertyDescriptor propertydescriptor = getProperyDescriptor(obj.getClass(), s1);
-                if (propertydescriptor == null)
+            return getter.invokeExact(obj);
+        } catch (Throwable throwable) {
+            throw new InvocationTargetException(throwable);
+        }
+    }
+
+    /**
+     * Read methods and public fields of a class, by property name
+     */
+    private static class ClassGetters {
+        private final Class<?> class1;
+        private final Map<String, Method> readMethods = new HashMap<String, Method>();
+        private final IntrospectionException failure;
+        private final ConcurrentMap<String, Optional<MethodHandle>> handles = new ConcurrentHashMap<String, Optional<MethodHandle>>();
+
+        ClassGetters(Class<?> class1) {
+            this.class1 = class1;
+            IntrospectionException failure = null;
+            try {
+                for (PropertyDescriptor propertyDescriptor : java.beans.Introspector.getBeanInfo(class1).getPropertyDescriptors()) {
+                    Optional.ofNullable(propertyDescriptor.getReadMethod())
+                            .ifPresent(method -> readMethods.put(propertyDescriptor.getName(), method));
+                }
+            } catch (IntrospectionException e) {
+                failure = e;
+            }
+            this.failure = failure;
+        }
+
+        MethodHandle getter(String s) throws IntrospectionException {
+            if (failure != null)
+                throw failure;
+            return handles.computeIfAbsent(s, this::resolve).orElse(null);
+        }
+
+        private Optional<MethodHandle> resolve(String s) {
+            try {
+                Method method = readMethods.get(s);
+                if (method != null) {
                     try {
-                        Field field = obj.getClass().getField(s);
-                        obj = field.get(obj);
-                    } catch (NoSuchFieldException _ex) {
-                        if (obj instanceof SelfIntrospector)
-                            return ((SelfIntrospector) obj).getPropertyValue(s);
-                        else
-                            throw new IntrospectionException(obj.getClass() + " non possiede la propriet\340 " + s1);
+                        return Optional.of(MethodHandles.publicLookup().unreflect(method).asType(GETTER_TYPE));
+                    } catch (IllegalAccessException _ex) {
+                        method.setAccessible(true);
+                        return Optional.of(MethodHandles.lookup().unreflect(method).asType(GETTER_TYPE));
                     }
-                else
-                    obj = propertydescriptor.getReadMethod().invoke(obj, null);
+                }
+                Field field = class1.getField(s);
+                return Optional.of(MethodHandles.publicLookup().unreflectGetter(field).asType(GETTER_TYPE));
+            } catch (NoSuchFieldException _ex) {
+                return Optional.empty();
+            } catch (IllegalAccessException illegalaccessexception) {
+                throw new IllegalAccessError(illegalaccessexception.getMessage());
             }
-
-        } catch (IllegalAccessException illegalaccessexception) {
-            throw new IllegalAccessError(illegalaccessexception.getMessage());
         }
-        return obj;
     }
 
-    private static PropertyDescriptor getProperyDescriptor(Class class1, String s)
-            throws IntrospectionException {
-        return (PropertyDescriptor) getProperyDescriptors(class1).get(s);
-    }
+    /**
+     * A dotted path split once, every segment caches the getter for the class of the last object it read
+     */
+    private static class PropertyPath {
+        private final String path;
+        private final Segment[] segments;
 
-    private static Hashtable getProperyDescriptors(Class class1)
-            throws IntrospectionException {
-        Hashtable hashtable = (Hashtable) properties.get(class1);
-        if (hashtable == null)
-            synchronized (properties) {
-                hashtable = (Hashtable) properties.get(class1);
-                if (hashtable == null) {
-                    PropertyDescriptor apropertydescriptor[] = java.beans.Introspector.getBeanInfo(class1).getPropertyDescriptors();
-                    properties.put(class1, hashtable = new Hashtable());
-                    for (int i = 0; i < apropertydescriptor.length; i++)
-                        try {
-                            hashtable.put(apropertydescriptor[i].getName(), new ListPropertyDescriptor(apropertydescriptor[i], class1));
-                        } catch (IntrospectionException _ex) {
-                            hashtable.put(apropertydescriptor[i].getName(), apropertydescriptor[i]);
-                        }
-
-                    properties.put(class1, hashtable);
+        PropertyPath(String path) {
+            this.path = path;
+            String[] names = path.split("\\.");
+            this.segments = new Segment[names.length];
+            for (int i = 0; i < names.length; i++) {
+                segments[i] = new Segment(names[i]);
+            }
+        }
+
+        Object getValue(Object obj) throws IntrospectionException, InvocationTargetException {
+            for (Segment segment : segments) {
+                if (obj == null)
+                    return null;
+                ResolvedGetter resolved = segment.resolved;
+                if (resolved == null || resolved.class1 != obj.getClass()) {
+                    resolved = new ResolvedGetter(obj.getClass(), getters.get(obj.getClass()).getter(segment.name));
+                    segment.resolved = resolved;
+                }
+                if (resolved.getter == null) {
+                    if (obj instanceof SelfIntrospector)
+                        return ((SelfIntrospector) obj).getPropertyValue(path);
+                    else
+                        throw new IntrospectionException(obj.getClass() + " non possiede la propriet\340 " + segment.name);
                 }
+                obj = invokeGetter(resolved.getter, obj);
             }
-        return hashtable;
+            return obj;
+        }
     }
 
-    public static Object invoke(Object obj, Method method, Object... aobj)
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-        if (method == null)
-            throw new NoSuchMethodException("No method in class " + obj.getClass() + " with parameters specified.");
-        else
-            return method.invoke(obj, aobj);
+    private static class Segment {
+        private final String name;
+        private volatile ResolvedGetter resolved;
+
+        Segment(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class ResolvedGetter {
+        private final Class<?> class1;
+        private final MethodHandle getter;
+
+        ResolvedGetter(Class<?> class1, MethodHandle getter) {
+            this.class1 = class1;
+            this.getter = getter;
+        }
     }
 }
@@ -22,6 +22,10 @@ import java.beans.PropertyDescriptor;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 
+/**
+ * @deprecated no longer used by {@link Introspector}, which reads properties through method handles
+ */
+@Deprecated
 public class ListPropertyDescriptor extends PropertyDescriptor
         implements Serializable {
 
@@ -17,23 +17,70 @@
 
 package it.cnr.si.util;
 
-import it.cnr.si.spring.storage.StorageException;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.slf4j.Logger;
 import org.springframework.util.Assert;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32C;
 
 /**
  * Created by marco.spasiano on 19/07/17.
  */
 public class MetadataEncodingUtils {
 
-    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(MetadataEncodingUtils.class);
-    private static final String UTF_8 = "UTF-8";
     private static final String PREFIX = "CNR_";
+    private static final char SEPARATOR = '|';
+    private static final char VALUES_SEPARATOR = ',';
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+    /**
+     * the metadata keys are few and always the same: their encodings are kept up to this size,
+     * an encoded key is also cached for decoding
+     */
+    private static final int MAX_CACHED_KEYS = 1024;
+    private static final ConcurrentMap<String, String> encodedKeys = new ConcurrentHashMap<String, String>();
+    private static final ConcurrentMap<String, String> decodedKeys = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Integrity check written in front of every value, recognized on decode by its length
+     */
+    public enum Checksum {
+        /**
+         * 32 hex digits, the historical format
+         */
+        MD5 {
+            @Override
+            String hex(byte[] bytes) {
+                return toHex(DigestUtils.md5(bytes));
+            }
+        },
+        /**
+         * 8 hex digits, cheaper to compute
+         */
+        CRC32C {
+            @Override
+            String hex(byte[] bytes) {
+                CRC32C crc32c = new CRC32C();
+                crc32c.update(bytes, 0, bytes.length);
+                final long value = crc32c.getValue();
+                char[] chars = new char[8];
+                for (int i = 7; i >= 0; i--) {
+                    chars[i] = HEX[(int) ((value >>> ((7 - i) * 4)) & 0xF)];
+                }
+                return new String(chars);
+            }
+        };
+
+        abstract String hex(byte[] bytes);
+
+        static Checksum of(int length) {
+            return length == 8 ? CRC32C : MD5;
+        }
+    }
 
     /**
      * Encode metadata value
@@ -42,45 +89,42 @@ public class MetadataEncodingUtils {
      * @return encoded metadata (i.e. ${md5(value)}|${b64(value)})
      */
     public static String encodeValue(String value) {
-        byte[] bytes;
-        try {
-            bytes = value.getBytes(UTF_8);
-        } catch (UnsupportedEncodingException e) {
-            throw new StorageException(StorageException.Type.GENERIC, "cannot encode value " + value, e);
-        }
-        String md5digest = DigestUtils
-                .md5Hex(bytes)
-                .toUpperCase();
-        String b64encoded = Base64
-                .getEncoder()
-                .encodeToString(bytes)
-                .replaceAll("=+$", "");
-
-        LOGGER.info("value {} having md5 {} has been encoded to {}", value, md5digest, b64encoded);
-        String output = String.format("%s|%s", md5digest, b64encoded);
-        LOGGER.info("value {} encoded to {}", value, output);
-        return output;
+        return encodeValue(value, Checksum.MD5);
     }
 
     /**
-     * Decode metadata value
+     * Encode metadata value
+     *
+     * @param value    metadata to encode
+     * @param checksum integrity check to prepend
+     * @return encoded metadata (i.e. ${checksum(value)}|${b64(value)})
+     */
+    public static String encodeValue(String value, Checksum checksum) {
+        return appendValue(new StringBuilder(), value, checksum).toString();
+    }
+
+    private static StringBuilder appendValue(StringBuilder builder, String value, Checksum checksum) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return builder
+                .append(checksum.hex(bytes))
+                .append(SEPARATOR)
+                .append(ENCODER.encodeToString(bytes));
+    }
+
+    /**
+     * Decode metadata value, whatever the checksum it was encoded with
      *
      * @param input encoded string (${md5(value)}|${b64(value)}) to decode
      * @return decoded value
      */
     public static String decodeValue(String input) {
-        String[] a = input.split("\\|");
-        if (a.length != 2)
+        final int separator = input.indexOf(SEPARATOR);
+        if (separator < 0 || separator == input.length() - 1 || input.indexOf(SEPARATOR, separator + 1) > -1)
             return null;
-        byte[] decoded = Base64.getDecoder().decode(a[1]);
-        try {
-            String decodedValue = new String(decoded, UTF_8);
-            LOGGER.info("{} decoded to {}", input, decodedValue);
-            Assert.isTrue(a[0].equals(DigestUtils.md5Hex(decodedValue).toUpperCase()), "integrity issue with input " + input);
-            return decodedValue;
-        } catch (UnsupportedEncodingException e) {
-            throw new StorageException(StorageException.Type.GENERIC, "cannot decode " + input, e);
-        }
+        final byte[] decoded = DECODER.decode(input.substring(separator + 1));
+        final String checksum = input.substring(0, separator);
+        Assert.isTrue(checksum.equals(Checksum.of(checksum.length()).hex(decoded)), () -> "integrity issue with input " + input);
+        return new String(decoded, StandardCharsets.UTF_8);
     }
 
 
@@ -91,16 +135,24 @@ public class MetadataEncodingUtils {
      * @return an encoded string such as ${md5(e1)}|${b64(e1)},${md5(e2)}|${b64(e2)},${md5(e3)}|${b64(e3)}
      */
     public static String encodeValues(List<String> entryValue) {
+        return encodeValues(entryValue, Checksum.MD5);
+    }
 
-        String base64EncodedValues = entryValue
-                .stream()
-                .map(MetadataEncodingUtils::encodeValue)
-                .collect(Collectors.joining(","));
-
-        LOGGER.info("{} encoded to {}", entryValue, base64EncodedValues);
-
-        return base64EncodedValues;
-
+    /**
+     * Encode a list of metadata values
+     *
+     * @param entryValue list of metadata values
+     * @param checksum   integrity check to prepend to every value
+     * @return an encoded string such as ${checksum(e1)}|${b64(e1)},${checksum(e2)}|${b64(e2)}
+     */
+    public static String encodeValues(List<String> entryValue, Checksum checksum) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : entryValue) {
+            if (builder.length() > 0)
+                builder.append(VALUES_SEPARATOR);
+            appendValue(builder, value, checksum);
+        }
+        return builder.toString();
     }
 
     /**
@@ -110,14 +162,16 @@ public class MetadataEncodingUtils {
      * @return a list of decoded values
      */
     public static List<String> decodeValues(String input) {
-
-        return Optional.ofNullable(input)
-                .map(s -> Arrays
-                        .stream(s.split(","))
-                        .map(MetadataEncodingUtils::decodeValue)
-                        .collect(Collectors.toList())
-                )
-                .orElse(Collections.emptyList());
+        if (input == null)
+            return Collections.emptyList();
+        List<String> values = new ArrayList<String>();
+        int start = 0;
+        for (int end = input.indexOf(VALUES_SEPARATOR); end > -1; end = input.indexOf(VALUES_SEPARATOR, start)) {
+            values.add(decodeValue(input.substring(start, end)));
+            start = end + 1;
+        }
+        values.add(decodeValue(input.substring(start)));
+        return values;
     }
 
 
@@ -128,20 +182,12 @@ public class MetadataEncodingUtils {
      * @return encoded metadata key (i.e. ${PREFIX}${base64(key)})
      */
     public static String encodeKey(String input) {
-        byte[] bytes;
-        try {
-            bytes = input.getBytes(UTF_8);
-        } catch (UnsupportedEncodingException e) {
-            throw new StorageException(StorageException.Type.GENERIC, "cannot encode key " + input, e);
-        }
-        String suffix = Base64
-                .getEncoder()
-                .encodeToString(bytes)
-                .replaceAll("=+$", "");
-        String b64encodedKey = String.format("%s%s", PREFIX, suffix);
-        LOGGER.info("key {} encoded to {}", input, b64encodedKey);
-        return b64encodedKey;
-
+        return Optional.ofNullable(encodedKeys.get(input))
+                .orElseGet(() -> {
+                    final String encodedKey = PREFIX.concat(ENCODER.encodeToString(input.getBytes(StandardCharsets.UTF_8)));
+                    cache(decodedKeys, encodedKey, input);
+                    return cache(encodedKeys, input, encodedKey);
+                });
     }
 
 
@@ -152,15 +198,27 @@ public class MetadataEncodingUtils {
      * @return decoded metadata key
      */
     public static String decodeKey(String input) {
-        Assert.isTrue(input.startsWith(PREFIX), String.format("Input %s not start width %s", input, PREFIX));
-        String suffix = input.replaceFirst(PREFIX, "");
-        try {
-            String output = new String(Base64.getDecoder().decode(suffix), UTF_8);
-            LOGGER.info("{} decoded to {}", input, output);
-            return output;
-        } catch (UnsupportedEncodingException e) {
-            throw new StorageException(StorageException.Type.GENERIC, "cannot decode " + input, e);
+        return Optional.ofNullable(decodedKeys.get(input))
+                .orElseGet(() -> {
+                    Assert.isTrue(input.startsWith(PREFIX), () -> String.format("Input %s not start width %s", input, PREFIX));
+                    return cache(decodedKeys, input,
+                            new String(DECODER.decode(input.substring(PREFIX.length())), StandardCharsets.UTF_8));
+                });
+    }
+
+    private static String cache(ConcurrentMap<String, String> keys, String input, String output) {
+        if (keys.size() < MAX_CACHED_KEYS)
+            keys.putIfAbsent(input, output);
+        return output;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
         }
+        return new String(chars);
     }
 
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage;
+
+import it.cnr.si.spring.storage.annotation.StoragePolicy;
+import it.cnr.si.spring.storage.annotation.StorageProperty;
+import it.cnr.si.spring.storage.annotation.StorageType;
+import it.cnr.si.spring.storage.bulk.StorageTypeName;
+import it.cnr.si.util.SelfIntrospector;
+import org.junit.Test;
+
+import java.beans.IntrospectionException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StoreBulkInfoTest {
+
+    private final StoreBulkInfo storeBulkInfo = new StoreBulkInfo();
+
+    @StorageType(name = "D:cnr:documento")
+    public static class Documento implements Serializable {
+        @StorageProperty(name = "cnr:oggetto")
+        private String oggetto = "Richiesta di acquisto";
+        @StoragePolicy(name = "P:cnr:protocollo", property = {@StorageProperty(name = "cnr:numeroProtocollo")})
+        private Integer numeroProtocollo = 42;
+
+        public String getOggetto() {
+            return oggetto;
+        }
+
+        public Integer getNumeroProtocollo() {
+            return numeroProtocollo;
+        }
+
+        @StorageProperty(name = "cnr:anno")
+        public Integer anno() {
+            return 2017;
+        }
+    }
+
+    public static class Ordine extends Documento implements StorageTypeName {
+        @StorageProperty(name = "cnr:codice")
+        public String codice = "ORD-1";
+
+        @Override
+        public String getTypeName() {
+            return "D:cnr:ordine";
+        }
+    }
+
+    @StorageType(name = "D:cnr:fascicolo")
+    public static class Fascicolo implements Serializable, SelfIntrospector {
+        @StorageProperty(name = "cnr:titolo")
+        private String titolo;
+
+        @Override
+        public Object getPropertyValue(String s) {
+            return "self:" + s;
+        }
+
+        @Override
+        public void setPropertyValue(String s, Object obj) {
+        }
+    }
+
+    @StorageType(name = "D:cnr:errato")
+    public static class Errato implements Serializable {
+        @StorageProperty(name = "cnr:stato")
+        private String stato;
+
+        public String getStato() {
+            throw new IllegalStateException("stato non disponibile");
+        }
+    }
+
+    @StorageType(name = "D:cnr:nascosto")
+    public static class Nascosto implements Serializable {
+        @StorageProperty(name = "cnr:nascosto")
+        private String nascosto;
+    }
+
+    public static class SenzaTipo implements Serializable {
+    }
+
+    @Test
+    public void propertyValues() {
+        Map<String, Object> properties = storeBulkInfo.getPropertyValue(new Documento());
+        assertEquals("Richiesta di acquisto", properties.get("cnr:oggetto"));
+        assertEquals(2017, properties.get("cnr:anno"));
+        assertEquals(Arrays.asList("P:cnr:protocollo"), storeBulkInfo.getAspect(new Documento()));
+        assertEquals(42, storeBulkInfo.getAspectPropertyValue(new Documento()).get("cnr:numeroProtocollo"));
+    }
+
+    @Test
+    public void publicFieldAndSelfIntrospector() {
+        // campo pubblico senza getter
+        assertEquals("ORD-1", storeBulkInfo.getPropertyValue(new Ordine()).get("cnr:codice"));
+        // campo privato senza getter letto tramite SelfIntrospector
+        assertEquals("self:titolo", storeBulkInfo.getPropertyValue(new Fascicolo()).get("cnr:titolo"));
+    }
+
+    @Test
+    public void type() {
+        assertEquals("D:cnr:documento", storeBulkInfo.getType(new Documento()));
+        // StorageTypeName prevale sull'annotazione ereditata
+        assertEquals("D:cnr:ordine", storeBulkInfo.getType(new Ordine()));
+        try {
+            storeBulkInfo.getType(new SenzaTipo());
+            fail("tipo mancante");
+        } catch (RuntimeException expected) {
+            assertEquals("Type is missing!", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void exceptions() {
+        try {
+            storeBulkInfo.getPropertyValue(new Errato());
+            fail("il getter solleva un'eccezione");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getCause() instanceof InvocationTargetException);
+            assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+        }
+        try {
+            storeBulkInfo.getPropertyValue(new Nascosto());
+            fail("proprietà senza getter");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getCause() instanceof IntrospectionException);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage.bulk;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StorageFileTest {
+
+    private static final String PIPPO = "pippo", PLUTO = "pluto";
+
+    @Test
+    public void testSpool() throws IOException {
+        byte[] bytes = new byte[StorageFileContent.SPOOL_THRESHOLD + 10];
+        new Random(1).nextBytes(bytes);
+        StorageFile spooled = new StorageFile(new ByteArrayInputStream(bytes), "application/octet-stream", "grande.bin");
+        assertEquals(bytes.length, spooled.getContent().getLength());
+        assertArrayEquals(bytes, spooled.getBytes());
+        assertArrayEquals(PIPPO.getBytes(), new StorageFile(new ByteArrayInputStream(PIPPO.getBytes()), "text/plain", "piccolo.txt").getBytes());
+    }
+
+    @Test
+    public void testSpoolFailure() {
+        // un errore di lettura non deve diventare un contenuto vuoto
+        InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connessione interrotta");
+            }
+        };
+        try {
+            new StorageFile(broken, "text/plain", "interrotto.txt");
+            fail("lo stream non è leggibile");
+        } catch (UncheckedIOException e) {
+            assertEquals("connessione interrotta", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testFileContent() throws Exception {
+        Path path = Files.createTempFile("storage-file", ".txt");
+        try {
+            Files.write(path, PLUTO.getBytes());
+            StorageFile file = new StorageFile(path.toFile(), "text/plain", "pluto.txt");
+            try (InputStream content = file.getInputStream()) {
+                assertEquals(PLUTO, new String(content.readAllBytes()));
+            }
+            // il contenuto viaggia con l'oggetto serializzato, anche dopo la cancellazione del file
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+                out.writeObject(file);
+            }
+            Files.delete(path);
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()))) {
+                assertArrayEquals(PLUTO.getBytes(), ((StorageFile) in.readObject()).getBytes());
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.util;
+
+import org.junit.Test;
+
+import java.beans.IntrospectionException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationTargetException;
+
+import static org.junit.Assert.*;
+
+public class IntrospectorTest {
+
+    public static class Persona {
+        private final String nome;
+
+        public Persona(String nome) {
+            this.nome = nome;
+        }
+
+        public String getNome() {
+            return nome;
+        }
+    }
+
+    public static class Ente {
+        public String getNome() {
+            return "Consiglio Nazionale delle Ricerche";
+        }
+    }
+
+    public static class Documento {
+        public String codice = "DOC-1";
+        private Object autore;
+
+        public Documento(Object autore) {
+            this.autore = autore;
+        }
+
+        public Object getAutore() {
+            return autore;
+        }
+
+        public String getStato() {
+            throw new IllegalStateException("stato non disponibile");
+        }
+    }
+
+    public static class Fascicolo implements SelfIntrospector {
+        public String getTitolo() {
+            return "Fascicolo";
+        }
+
+        @Override
+        public Object getPropertyValue(String s) {
+            return "self:" + s;
+        }
+
+        @Override
+        public void setPropertyValue(String s, Object obj) {
+        }
+    }
+
+    @Test
+    public void dottedPath() throws Exception {
+        assertEquals("Mario Rossi", Introspector.getPropertyValue(new Documento(new Persona("Mario Rossi")), "autore.nome"));
+        assertNull(Introspector.getPropertyValue(new Documento(null), "autore.nome"));
+        Documento documento = new Documento(null);
+        assertSame(documento, Introspector.getPropertyValue(documento, null));
+    }
+
+    @Test
+    public void polymorphicSegments() throws Exception {
+        // lo stesso percorso letto su classi diverse non deve riusare il getter della classe precedente
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Mario Rossi", Introspector.getPropertyValue(new Documento(new Persona("Mario Rossi")), "autore.nome"));
+            assertEquals("Consiglio Nazionale delle Ricerche", Introspector.getPropertyValue(new Documento(new Ente()), "autore.nome"));
+        }
+    }
+
+    @Test
+    public void publicField() throws Throwable {
+        assertEquals("DOC-1", Introspector.getPropertyValue(new Documento(null), "codice"));
+        MethodHandle getter = Introspector.getPropertyGetter(Documento.class, "codice");
+        assertEquals("DOC-1", getter.invokeExact((Object) new Documento(null)));
+    }
+
+    @Test
+    public void selfIntrospector() throws Throwable {
+        assertEquals("Fascicolo", Introspector.getPropertyValue(new Fascicolo(), "titolo"));
+        assertEquals("self:protocollo", Introspector.getPropertyValue(new Fascicolo(), "protocollo"));
+        assertEquals("self:protocollo.numero", Introspector.getPropertyValue(new Fascicolo(), "protocollo.numero"));
+        // come in origine, SelfIntrospector riceve il percorso completo
+        assertEquals("self:autore.protocollo", Introspector.getPropertyValue(new Documento(new Fascicolo()), "autore.protocollo"));
+        MethodHandle getter = Introspector.getPropertyGetter(Fascicolo.class, "protocollo");
+        assertEquals("self:protocollo", getter.invokeExact((Object) new Fascicolo()));
+    }
+
+    @Test
+    public void exceptions() throws Exception {
+        try {
+            Introspector.getPropertyValue(new Documento(null), "mancante");
+            fail("proprietà inesistente");
+        } catch (IntrospectionException expected) {
+        }
+        try {
+            Introspector.getPropertyValue(new Documento(new Ente()), "autore.cognome");
+            fail("proprietà inesistente");
+        } catch (IntrospectionException expected) {
+        }
+        try {
+            Introspector.getPropertyGetter(Documento.class, "mancante");
+            fail("proprietà inesistente");
+        } catch (IntrospectionException expected) {
+        }
+        try {
+            Introspector.getPropertyValue(new Documento(null), "stato");
+            fail("il getter solleva un'eccezione");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -85,4 +85,24 @@ public class MetadataEncodingUtilsTest {
         assertEquals(ENCODED_VALUES, s);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void encodeValueCRC32C() throws Exception {
+        String s = MetadataEncodingUtils.encodeValue(VALUE, MetadataEncodingUtils.Checksum.CRC32C);
+        assertEquals(8, s.indexOf('|'));
+        assertEquals(VALUE, MetadataEncodingUtils.decodeValue(s));
+    }
+
+    @Test
+    public void decodeValuesMixedChecksum() throws Exception {
+        String s = MetadataEncodingUtils.encodeValues(Arrays.asList(STIG_TOFTING), MetadataEncodingUtils.Checksum.CRC32C)
+                .concat(",")
+                .concat(MetadataEncodingUtils.encodeValue(JESPER_GRONKJAER));
+        assertEquals(Arrays.asList(STIG_TOFTING, JESPER_GRONKJAER), MetadataEncodingUtils.decodeValues(s));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeValueIntegrity() throws Exception {
+        MetadataEncodingUtils.decodeValue(ENCODED_VALUE.replace('6', '7'));
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage;
+
+import it.cnr.si.spring.storage.config.StoragePropertyNames;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Metadata of the objects of the filesystem driver, kept next to them: {@code <name>.meta} for files,
+ * {@code dir.meta} inside directories.
+ * The sidecar is binary with typed values and is replaced atomically (temporary file and rename).
+ * Sidecars written as {@code java.util.Properties} ({@code .properties}) are still read, and replaced
+ * by the binary form the first time the object is updated.
+ */
+class FilesystemMetadata {
+    static final String SUFFIX = ".meta";
+    static final String LEGACY_SUFFIX = ".properties";
+    private static final String TEMP_SUFFIX = ".meta.tmp";
+    private static final String DIRECTORY = "dir";
+    /**
+     * temporary files are named after the sidecar followed by the random part of {@link Files#createTempFile}
+     */
+    private static final Pattern TEMP_NAME = Pattern.compile("(.+)" + Pattern.quote(SUFFIX) + "\\d+" + Pattern.quote(TEMP_SUFFIX));
+    private static final int MAGIC = 0x53434D44;
+    private static final byte VERSION = 1;
+    private static final byte NULL = 0, STRING = 1, LIST = 2, BIG_INTEGER = 3, LONG = 4, INTEGER = 5, BOOLEAN = 6,
+            CALENDAR = 7, DATE = 8;
+
+    private FilesystemMetadata() {
+    }
+
+    /**
+     * A name with a sidecar suffix is a sidecar, current, legacy or being written, only when the file it describes
+     * is next to it or it belongs to the directory itself: otherwise it is a file stored with that name.
+     *
+     * @return true for sidecars
+     */
+    static boolean isMetadata(Path path) {
+        final String name = path.getFileName().toString();
+        return Stream.of(SUFFIX, LEGACY_SUFFIX)
+                .filter(name::endsWith)
+                .map(suffix -> name.substring(0, name.length() - suffix.length()))
+                .findFirst()
+                .or(() -> Optional.of(TEMP_NAME.matcher(name))
+                        .filter(Matcher::matches)
+                        .map(matcher -> matcher.group(1)))
+                .filter(objectName -> objectName.equals(DIRECTORY) || Files.isRegularFile(path.resolveSibling(objectName)))
+                .isPresent();
+    }
+
+    static Path sidecar(Path objectPath, String suffix) {
+        return Files.isDirectory(objectPath) ?
+                objectPath.resolve(DIRECTORY.concat(suffix)) :
+                Paths.get(objectPath + suffix);
+    }
+
+    /**
+     * @return the metadata of the object, empty when it has none
+     */
+    static Map<String, Object> read(Path objectPath) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(sidecar(objectPath, SUFFIX))))) {
+            if (input.readInt() != MAGIC || input.readByte() != VERSION)
+                throw new StreamCorruptedException("Not a metadata file: " + sidecar(objectPath, SUFFIX));
+            final int size = input.readInt();
+            Map<String, Object> metadata = new HashMap<String, Object>(Math.max(16, size * 2));
+            for (int i = 0; i < size; i++) {
+                metadata.put(input.readUTF(), readValue(input));
+            }
+            return metadata;
+        } catch (NoSuchFileException _ex) {
+            return readLegacy(objectPath);
+        }
+    }
+
+    /**
+     * Replaces the metadata of the object, removing the legacy sidecar
+     */
+    static void write(Path objectPath, Map<String, ?> metadata) throws IOException {
+        final Path sidecar = sidecar(objectPath, SUFFIX);
+        final Path temp = Files.createTempFile(sidecar.getParent(), sidecar.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                output.writeInt(MAGIC);
+                output.writeByte(VERSION);
+                output.writeInt(metadata.size());
+                for (Map.Entry<String, ?> entry : metadata.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    writeValue(output, entry.getKey(), entry.getValue());
+                }
+            }
+            try {
+                Files.move(temp, sidecar, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException _ex) {
+                Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Files.deleteIfExists(sidecar(objectPath, LEGACY_SUFFIX));
+    }
+
+    /**
+     * Moves the sidecars of a file along with it
+     */
+    static void move(Path objectPath, Path target) throws IOException {
+        for (String suffix : Arrays.asList(SUFFIX, LEGACY_SUFFIX)) {
+            final Path sidecar = Paths.get(objectPath + suffix);
+            if (Files.exists(sidecar))
+                Files.move(sidecar, Paths.get(target + suffix));
+        }
+    }
+
+    /**
+     * Deletes the sidecars of a file
+     */
+    static void delete(Path objectPath) throws IOException {
+        Files.deleteIfExists(Paths.get(objectPath + SUFFIX));
+        Files.deleteIfExists(Paths.get(objectPath + LEGACY_SUFFIX));
+    }
+
+    private static void writeValue(DataOutputStream output, String name, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (name.equals(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()) && value instanceof Number) {
+            output.writeByte(BIG_INTEGER);
+            writeBytes(output, new BigInteger(value.toString()).toByteArray());
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            output.writeByte(LIST);
+            output.writeInt(list.size());
+            for (Object element : list) {
+                writeString(output, element == null ? null : element.toString());
+            }
+        } else if (value instanceof BigInteger) {
+            output.writeByte(BIG_INTEGER);
+            writeBytes(output, ((BigInteger) value).toByteArray());
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER);
+            output.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Calendar) {
+            output.writeByte(CALENDAR);
+            output.writeLong(((Calendar) value).getTimeInMillis());
+            output.writeUTF(((Calendar) value).getTimeZone().getID());
+        } else if (value instanceof Date) {
+            output.writeByte(DATE);
+            output.writeLong(((Date) value).getTime());
+        } else {
+            output.writeByte(STRING);
+            writeString(output, value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream input) throws IOException {
+        final byte type = input.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(input);
+            case LIST:
+                final int size = input.readInt();
+                List<String> list = new ArrayList<String>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readString(input));
+                }
+                return list;
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(input));
+            case LONG:
+                return input.readLong();
+            case INTEGER:
+                return input.readInt();
+            case BOOLEAN:
+                return input.readBoolean();
+            case CALENDAR:
+                final long timeInMillis = input.readLong();
+                Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(input.readUTF()));
+                calendar.setTimeInMillis(timeInMillis);
+                return calendar;
+            case DATE:
+                return new Date(input.readLong());
+            default:
+                throw new StreamCorruptedException("Unknown metadata type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null)
+            output.writeInt(-1);
+        else
+            writeBytes(output, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        final byte[] bytes = readBytes(input);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Sidecars written before the binary format: every value is a string, lists are written as [a,b]
+     */
+    private static Map<String, Object> readLegacy(Path objectPath) throws IOException {
+        Properties prop = new Properties();
+        try (InputStream input = Files.newInputStream(sidecar(objectPath, LEGACY_SUFFIX))) {
+            prop.load(input);
+        } catch (NoSuchFileException _ex) {
+            return new HashMap<String, Object>();
+        }
+        Optional.ofNullable(prop.getProperty(StoragePropertyNames.CONTENT_STREAM_LENGTH.value())).ifPresent(o -> {
+            prop.put(StoragePropertyNames.CONTENT_STREAM_LENGTH.value(), (new BigInteger(o)));
+        });
+        return prop.entrySet().stream()
+                .map(e -> {
+                    String s = e.getValue().toString();
+                    if (s.startsWith("[")) {
+                        s = s.substring(1, s.length() - 1);
+                        e.setValue(Arrays.asList(s.split(",")));
+                    }
+                    return e;
+                })
+                .collect(
+                        Collectors.toMap(
+                                e -> e.getKey().toString(),
+                                e -> e.getValue()
+                        )
+                );
+    }
+}
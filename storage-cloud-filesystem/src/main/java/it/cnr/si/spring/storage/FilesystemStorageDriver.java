@@ -2,6 +2,7 @@ package it.cnr.si.spring.storage;
 
 import it.cnr.si.spring.storage.condition.StorageDriverIsFilesystem;
 import it.cnr.si.spring.storage.config.StoragePropertyNames;
+import it.cnr.si.util.LimitedInputStream;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,7 +12,11 @@ import org.springframework.stereotype.Service;
 
 import jakarta.annotation.PostConstruct;
 import java.io.*;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -30,6 +35,12 @@ public class FilesystemStorageDriver implements StorageDriver {
     @Value("${cnr.storage.filesystem.directory}")
     private String directory;
 
+    /**
+     * contents are read through read-only memory mappings instead of read calls, for read-heavy nodes
+     */
+    @Value("${cnr.storage.filesystem.memoryMapped:false}")
+    private boolean memoryMapped;
+
     private Path basePath;
 
     @Override
@@ -145,9 +156,8 @@ public class FilesystemStorageDriver implements StorageDriver {
 
                 String currenFileName=storageObject.getPropertyValue(StoragePropertyNames.NAME.value());
                 Path objectPath = absolutizePath(Paths.get(storageObject.getPath()));
-                Path propsPath = Paths.get(absolutizePath(Paths.get(storageObject.getPath())) + ".properties");
                 try {
-                    Files.move(propsPath, propsPath.resolveSibling(storageObject.getPropertyValue( StoragePropertyNames.NAME.value()).toString().concat(".properties")));
+                    FilesystemMetadata.move(objectPath, objectPath.resolveSibling(storageObject.getPropertyValue( StoragePropertyNames.NAME.value()).toString()));
                 } catch (IOException e) {
                     throw new StorageException(StorageException.Type.GENERIC, "Unable to move metadata for file " + storageObject.getPath()+" File Rename", e);
                 }
@@ -195,12 +205,62 @@ public class FilesystemStorageDriver implements StorageDriver {
     @Override
     public InputStream getInputStream(String name) {
         try {
-            return Files.newInputStream(absolutizePath(Paths.get(name)));
+            final Path path = absolutizePath(Paths.get(name));
+            if (memoryMapped && Files.size(path) <= Integer.MAX_VALUE)
+                return new ByteBufferInputStream(map(name, 0, Long.MAX_VALUE));
+            return Files.newInputStream(path);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public InputStream getInputStream(String key, long offset, long length) {
+        try {
+            if (memoryMapped && length <= Integer.MAX_VALUE)
+                return new ByteBufferInputStream(map(key, offset, length));
+            FileChannel channel = FileChannel.open(absolutizePath(Paths.get(key)), StandardOpenOption.READ);
+            channel.position(offset);
+            return new LimitedInputStream(Channels.newInputStream(channel), length);
+        } catch (IOException e) {
+            throw new StorageException(StorageException.Type.GENERIC, "Unable to read " + key, e);
+        }
+    }
+
+    /**
+     * The kernel moves the bytes from the file to the target (sendfile/splice when the target is a socket or a file).
+     * Stops early when nothing more can be moved: the file has been truncated or a non-blocking target is full.
+     */
+    @Override
+    public long transferTo(String key, WritableByteChannel target) {
+        try (FileChannel channel = FileChannel.open(absolutizePath(Paths.get(key)), StandardOpenOption.READ)) {
+            long position = 0;
+            for (long size = channel.size(); position < size; size = channel.size()) {
+                final long transferred = channel.transferTo(position, size - position, target);
+                if (transferred == 0)
+                    break;
+                position += transferred;
+            }
+            return position;
+        } catch (IOException e) {
+            throw new StorageException(StorageException.Type.GENERIC, "Unable to read " + key, e);
+        }
+    }
+
+    /**
+     * @return a read-only mapping of the range, the mapping outlives the channel
+     * @throws StorageException when the range is larger than 2GB, the readers fall back to a stream
+     */
+    public MappedByteBuffer map(String key, long offset, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(absolutizePath(Paths.get(key)), StandardOpenOption.READ)) {
+            final long position = Math.min(offset, channel.size());
+            final long size = Math.min(length, channel.size() - position);
+            if (size > Integer.MAX_VALUE)
+                throw new StorageException(StorageException.Type.GENERIC, "Unable to map " + key + ": larger than 2GB");
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+    }
+
     @Override
     public InputStream getInputStream(String key, String versionId) {
         throw new RuntimeException();
@@ -237,13 +297,41 @@ public class FilesystemStorageDriver implements StorageDriver {
         }
     }
 
+    /**
+     * Files are removed together with their metadata without listing the parent directory,
+     * directories with a single walk of their tree.
+     */
+    @Override
+    public Map<String, Boolean> deleteAll(Collection<String> ids) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String id : ids) {
+            Path objectPath = absolutizePath(Paths.get(id));
+            try {
+                if (Files.isDirectory(objectPath)) {
+                    try (Stream<Path> tree = Files.walk(objectPath)) {
+                        tree.sorted(Comparator.reverseOrder())
+                                .map(Path::toFile)
+                                .forEach(File::delete);
+                    }
+                    result.put(id, !Files.exists(objectPath));
+                } else {
+                    FilesystemMetadata.delete(objectPath);
+                    result.put(id, Files.deleteIfExists(objectPath));
+                }
+            } catch (IOException e) {
+                throw new StorageException(StorageException.Type.GENERIC, "Unable to delete " + id, e);
+            }
+        }
+        return result;
+    }
+
     @Override
     public StorageObject getObject(String key) {
         try {
             Path objectPath = absolutizePath(Paths.get(key));
             if (Files.exists(objectPath)) {
                 Map<String, Object> metadata = getMetadata(Paths.get(key));
-                StorageObject so = new StorageObject(key, key, metadata);
+                StorageObject so = new StorageObject(key, key, StorageMetadata.of(metadata));
 
                 return so;
             } else
@@ -269,7 +357,7 @@ public class FilesystemStorageDriver implements StorageDriver {
         try {
             Stream<Path> contents = Files.list(absolutizePath(Paths.get(key)));
             return contents
-                    .filter(p -> !p.toString().endsWith(".properties"))
+                    .filter(p -> !FilesystemMetadata.isMetadata(p))
                     .map(p -> relativizePath(p))
                     .map(p -> getObject(p.toString()))
                     .collect(Collectors.toList());
@@ -279,6 +367,30 @@ public class FilesystemStorageDriver implements StorageDriver {
         }
     }
 
+    /**
+     * Children are sorted by name, the continuation token is the name of the last child of the page.
+     */
+    @Override
+    public StoragePage getChildrenPage(String key, int pageSize, String continuationToken) {
+        try (Stream<Path> contents = Files.list(absolutizePath(Paths.get(key)))) {
+            List<Path> page = contents
+                    .filter(p -> !FilesystemMetadata.isMetadata(p))
+                    .filter(p -> continuationToken == null || p.getFileName().toString().compareTo(continuationToken) > 0)
+                    .sorted(Comparator.comparing(p -> p.getFileName().toString()))
+                    .limit(pageSize + 1L)
+                    .collect(Collectors.toList());
+            List<StorageObject> children = page.stream()
+                    .limit(pageSize)
+                    .map(p -> relativizePath(p))
+                    .map(p -> getObject(p.toString()))
+                    .collect(Collectors.toList());
+            return new StoragePage(children,
+                    page.size() > pageSize ? page.get(pageSize - 1).getFileName().toString() : null);
+        } catch (IOException e) {
+            throw new StorageException(StorageException.Type.GENERIC, e);
+        }
+    }
+
     @Override
     public List<StorageObject> getChildren(String key, int depth) {
         try {
@@ -289,7 +401,7 @@ public class FilesystemStorageDriver implements StorageDriver {
             );
             return contents
                     .filter(path -> !Files.isDirectory(path))
-                    .filter(p -> !p.toString().endsWith(".properties"))
+                    .filter(p -> !FilesystemMetadata.isMetadata(p))
                     .map(p -> relativizePath(p))
                     .map(p -> getObject(p.toString()))
                     .collect(Collectors.toList());
@@ -331,11 +443,9 @@ public class FilesystemStorageDriver implements StorageDriver {
                 return;
 
             }
-            InputStream inputStream = new FileInputStream(file);
-            Files.copy(inputStream,
+            Files.copy(file.toPath(),
                     absolutizePath(Paths.get(target.getPath().concat(SUFFIX).concat(( String)metadataProperties.get(StoragePropertyNames.NAME.value())))),
                     StandardCopyOption.REPLACE_EXISTING);
-            inputStream.close();
             saveMetadata(Paths.get(target.getPath().concat(SUFFIX).concat(file.getName())), metadataProperties);
 
         } catch (IOException e) {
@@ -373,63 +483,13 @@ public class FilesystemStorageDriver implements StorageDriver {
         metadata.put(StoragePropertyNames.ID.value(), relativePath.toString());
 
         Path objectPath = absolutizePath(relativePath);
-        Path propsPath = Files.isDirectory(objectPath) ?
-                objectPath.resolve("dir.properties") :
-                Paths.get(absolutizePath(relativePath) + ".properties");
-
-        Properties prop = new Properties();
-        Stream.concat(
-                getMetadata(relativePath).entrySet().stream(),
-                metadata.entrySet().stream()
-        ).forEach(stringObjectEntry -> {
-            Object value;
-            if (stringObjectEntry.getValue() == null) {
-                value = "";
-            } else if (stringObjectEntry.getValue() instanceof List) {
-                value = ((List) stringObjectEntry.getValue()).stream().collect(Collectors.joining(","));
-                value = "[" + value + "]";
-            } else {
-                value = stringObjectEntry.getValue().toString();
-            }
-            prop.put(stringObjectEntry.getKey(), value);
-        });
-        OutputStream output = new FileOutputStream(propsPath.toString());
-        prop.store(output, null);
-        output.close();
+        Map<String, Object> merged = FilesystemMetadata.read(objectPath);
+        merged.putAll(metadata);
+        FilesystemMetadata.write(objectPath, merged);
     }
 
     private Map<String, Object> getMetadata(Path path) throws IOException {
-        try {
-            Path objectPath = absolutizePath(path);
-            Path propsPath = Files.isDirectory(objectPath) ?
-                    objectPath.resolve("dir.properties") :
-                    Paths.get(objectPath + ".properties");
-            InputStream input = new FileInputStream(propsPath.toString());
-            Properties prop = new Properties();
-            prop.load(input);
-            input.close();
-            Optional.ofNullable(prop.getProperty(StoragePropertyNames.CONTENT_STREAM_LENGTH.value())).ifPresent(o -> {
-                prop.put(StoragePropertyNames.CONTENT_STREAM_LENGTH.value(), (new BigInteger(o)));
-            });
-
-            return prop.entrySet().stream()
-                    .map(e -> {
-                        String s = e.getValue().toString();
-                        if (s.startsWith("[")) {
-                            s = s.substring(1, s.length() - 1);
-                            e.setValue(Arrays.asList(s.split(",")));
-                        }
-                        return e;
-                    })
-                    .collect(
-                            Collectors.toMap(
-                                    e -> e.getKey().toString(),
-                                    e -> e.getValue()
-                            )
-                    );
-        } catch (FileNotFoundException _ex) {
-            return Collections.emptyMap();
-        }
+        return FilesystemMetadata.read(absolutizePath(path));
     }
 
 
@@ -459,4 +519,43 @@ public class FilesystemStorageDriver implements StorageDriver {
     private Path relativizePath(Path absolutePath) {
         return basePath.relativize(absolutePath);
     }
+
+    /**
+     * Reads a mapped buffer, nothing is copied until read is called
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer byteBuffer;
+
+        ByteBufferInputStream(ByteBuffer byteBuffer) {
+            this.byteBuffer = byteBuffer;
+        }
+
+        @Override
+        public int read() {
+            return byteBuffer.hasRemaining() ? byteBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!byteBuffer.hasRemaining())
+                return -1;
+            final int n = Math.min(len, byteBuffer.remaining());
+            byteBuffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, byteBuffer.remaining()));
+            byteBuffer.position(byteBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return byteBuffer.remaining();
+        }
+    }
 }
@@ -11,13 +11,21 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -196,6 +204,261 @@ public class FilesystemStorageTest {
 
     }
 
+    @Test
+    public void testAsync() throws Exception {
+
+        StorageObject so = createFile();
+
+        StorageObject parent = storeService.getStorageObjectBykey(
+                storeService.createFolderIfNotPresent("/", "async", null, null));
+        StorageObject other = storeService.storeSimpleDocumentAsync(
+                new ByteArrayInputStream(PLUTO.getBytes()), "text/plain", new HashMap<>(), parent).get();
+        assertNotNull(other);
+
+        Map<String, Object> newProperties = new HashMap<>();
+        newProperties.put("topolino", "minnie");
+        StorageObject updated = storeService.updatePropertiesAsync(newProperties, so)
+                .thenCompose(aVoid -> storeService.getStorageObjectBykeyAsync(so.getKey()))
+                .get();
+        assertEquals("minnie", updated.getPropertyValue("topolino"));
+
+        assertTrue(storeService.deleteAsync(other.getKey()).get());
+        assertNull(storeService.getStorageObjectBykeyAsync(other.getKey()).get());
+    }
+
+    @Test
+    public void testDeleteAll() {
+
+        String folder = storeService.createFolderIfNotPresent("/", "deleteAll", null, null);
+        StorageObject parent = storeService.getStorageObjectBykey(folder);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put(StoragePropertyNames.NAME.value(), "file" + i);
+            keys.add(storeService.storeSimpleDocument(new ByteArrayInputStream(PIPPO.getBytes()), "text/plain", metadata, parent).getKey());
+        }
+        keys.add(folder.concat("/non-esistente"));
+
+        Map<String, Boolean> result = storeService.deleteAll(keys);
+
+        assertEquals(keys, new ArrayList<>(result.keySet()));
+        assertEquals(Arrays.asList(true, true, true, false), new ArrayList<>(result.values()));
+        assertTrue(storeService.getChildren(folder).isEmpty());
+    }
+
+    @Test
+    public void testFolderByPathCache() {
+
+        String folder = storeService.createFolderIfNotPresent("/cache", "cartella", "Titolo", null);
+        StorageObject so = storeService.getStorageObjectByPath(folder, true, false);
+        assertEquals("Titolo", so.getPropertyValue(TITLE.value()));
+
+        Map<String, Object> newProperties = new HashMap<>();
+        newProperties.put(TITLE.value(), "Nuovo titolo");
+        storeService.updateProperties(newProperties, so);
+        assertEquals("Nuovo titolo", storeService.getStorageObjectByPath(folder, true, false).getPropertyValue(TITLE.value()));
+
+        assertTrue(storeService.delete(so));
+        assertNull(storeService.getStorageObjectByPath(folder, true, false));
+    }
+
+    @Test
+    public void testConcurrentFolderCreation() throws Exception {
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> folders = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                folders.add(executorService.submit(() -> storeService.createFolderIfNotPresent("/concorrenza", "cartella", null, null)));
+            }
+            Set<String> paths = new HashSet<>();
+            for (Future<String> folder : folders) {
+                paths.add(folder.get().replaceFirst("^/", ""));
+            }
+            assertEquals(Collections.singleton("concorrenza/cartella"), paths);
+            assertNotNull(storeService.getStorageObjectBykey("/concorrenza/cartella"));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompactMetadata() {
+
+        String folder = storeService.createFolderIfNotPresent("/", "compatti", null, null);
+        StorageObject parent = storeService.getStorageObjectBykey(folder);
+        List<StorageObject> documents = new ArrayList<>();
+        for (String name : Arrays.asList("uno.txt", "due.txt")) {
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put(StoragePropertyNames.NAME.value(), name);
+            metadata.put(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value(),
+                    new ArrayList<>(Collections.singletonList(StoragePropertyNames.ASPECT_TITLED.value())));
+            documents.add(storeService.getStorageObjectBykey(
+                    storeService.storeSimpleDocument(new ByteArrayInputStream(PIPPO.getBytes()), "text/plain", metadata, parent).getKey()));
+        }
+        assertEquals(BigInteger.valueOf(PIPPO.length()),
+                documents.get(0).getPropertyValue(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()));
+        assertSame(documents.get(0).getPropertyValue(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value()),
+                documents.get(1).getPropertyValue(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value()));
+
+        storeService.addAspect(documents.get(0), StoragePropertyNames.SYS_ARCHIVED.value());
+        assertTrue(storeService.hasAspect(storeService.getStorageObjectBykey(documents.get(0).getKey()), StoragePropertyNames.SYS_ARCHIVED.value()));
+        assertFalse(storeService.hasAspect(storeService.getStorageObjectBykey(documents.get(1).getKey()), StoragePropertyNames.SYS_ARCHIVED.value()));
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(StoragePropertyNames.NAME.value(), "trasferimento.txt");
+        StorageObject so = storeService.storeSimpleDocument(new ByteArrayInputStream(PIPPO.getBytes()), "text/plain", "/trasferimenti", metadata);
+        Path target = Files.createTempFile("storage-transfer", ".txt");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            assertEquals(PIPPO.length(), storeService.transferResource(so.getKey(), channel));
+            assertEquals(PIPPO, new String(Files.readAllBytes(target)));
+        } finally {
+            Files.deleteIfExists(target);
+        }
+
+        // un canale non bloccante pieno non accetta byte: il trasferimento si ferma invece di ciclare
+        assertEquals(0, storageDriver.transferTo(so.getKey(), new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                return 0;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }));
+
+        ReflectionTestUtils.setField(storageDriver, "memoryMapped", true);
+        Path basePath = (Path) ReflectionTestUtils.getField(storageDriver, "basePath");
+        Path grande = Files.createDirectories(basePath.resolve("mappati")).resolve("grande.bin");
+        try (InputStream content = storeService.getResource(so.getKey());
+             InputStream range = storageDriver.getInputStream(so.getKey(), 1, 3)) {
+            assertEquals(PIPPO, new String(content.readAllBytes()));
+            assertEquals(PIPPO.substring(1, 4), new String(range.readAllBytes()));
+            // oltre 2GB il file non si mappa, si legge dal canale
+            try (RandomAccessFile file = new RandomAccessFile(grande.toFile(), "rw")) {
+                file.setLength(Integer.MAX_VALUE + 10L);
+            }
+            try (InputStream grandeContent = storageDriver.getInputStream("mappati/grande.bin");
+                 InputStream grandeRange = storageDriver.getInputStream("mappati/grande.bin", Integer.MAX_VALUE, Long.MAX_VALUE)) {
+                assertEquals(0, grandeContent.read());
+                assertEquals(10, grandeRange.readAllBytes().length);
+            }
+        } finally {
+            Files.deleteIfExists(grande);
+            ReflectionTestUtils.setField(storageDriver, "memoryMapped", false);
+        }
+    }
+
+    @Test
+    public void testMetadataSuffixNames() throws Exception {
+
+        String folder = storeService.createFolderIfNotPresent("/", "suffissi", null, null);
+        StorageObject parent = storeService.getStorageObjectBykey(folder);
+        for (String name : Arrays.asList("relazione.txt", "nota.meta", "config.properties")) {
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put(StoragePropertyNames.NAME.value(), name);
+            storeService.storeSimpleDocument(new ByteArrayInputStream(PIPPO.getBytes()), "text/plain", metadata, parent);
+        }
+        /*i sidecar sono nascosti, i file con lo stesso suffisso no*/
+        assertEquals(new HashSet<>(Arrays.asList("relazione.txt", "nota.meta", "config.properties")),
+                storeService.getChildren(parent.getKey()).stream()
+                        .map(child -> child.<String>getPropertyValue(StoragePropertyNames.NAME.value()))
+                        .collect(Collectors.toSet()));
+        try (InputStream content = storeService.getResource("suffissi/nota.meta")) {
+            assertEquals(PIPPO, new String(content.readAllBytes()));
+        }
+    }
+
+    @Test
+    public void testLegacyMetadataMigration() throws Exception {
+
+        Path basePath = (Path) ReflectionTestUtils.getField(storageDriver, "basePath");
+        Path directory = Files.createDirectories(basePath.resolve("migrazione"));
+        Files.write(directory.resolve("vecchio.txt"), PIPPO.getBytes());
+        Properties properties = new Properties();
+        properties.setProperty(StoragePropertyNames.NAME.value(), "vecchio.txt");
+        properties.setProperty(StoragePropertyNames.CONTENT_STREAM_LENGTH.value(), String.valueOf(PIPPO.length()));
+        properties.setProperty(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value(), "[P:cm:titled,P:cm:author]");
+        try (OutputStream output = Files.newOutputStream(directory.resolve("vecchio.txt.properties"))) {
+            properties.store(output, null);
+        }
+
+        StorageObject so = storeService.getStorageObjectBykey("migrazione/vecchio.txt");
+        assertEquals(BigInteger.valueOf(PIPPO.length()), so.getPropertyValue(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()));
+        assertEquals(Arrays.asList("P:cm:titled", "P:cm:author"), so.getPropertyValue(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value()));
+
+        Map<String, Object> newProperties = new HashMap<>();
+        newProperties.put(TITLE.value(), "Migrato");
+        storeService.updateProperties(newProperties, so);
+        assertFalse(Files.exists(directory.resolve("vecchio.txt.properties")));
+        assertTrue(Files.exists(directory.resolve("vecchio.txt.meta")));
+
+        so = storeService.getStorageObjectBykey("migrazione/vecchio.txt");
+        assertEquals("Migrato", so.getPropertyValue(TITLE.value()));
+        assertEquals(BigInteger.valueOf(PIPPO.length()), so.getPropertyValue(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()));
+        assertEquals(Arrays.asList("P:cm:titled", "P:cm:author"), so.getPropertyValue(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value()));
+        assertEquals(Collections.singletonList("vecchio.txt"), storeService.getChildren("migrazione").stream()
+                .map(child -> child.<String>getPropertyValue(StoragePropertyNames.NAME.value()))
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testRangeDownload() throws Exception {
+
+        String folder = storeService.createFolderIfNotPresent("/", "range", null, null);
+        StorageObject parent = storeService.getStorageObjectBykey(folder);
+        String text = "0123456789abcdefghij";
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(StoragePropertyNames.NAME.value(), "range.txt");
+        StorageObject so = storeService.storeSimpleDocument(new ByteArrayInputStream(text.getBytes()), "text/plain", metadata, parent);
+
+        try (InputStream is = storageDriver.getInputStream(so.getKey(), 5, 4)) {
+            assertEquals("5678", new String(is.readAllBytes()));
+        }
+
+        ParallelRangeDownloader downloader = new ParallelRangeDownloader(storageDriver, Runnable::run, 3, 2);
+        try (InputStream is = downloader.download(so.getKey(), text.length())) {
+            assertEquals(text, new String(is.readAllBytes()));
+        }
+
+        Path target = Files.createTempFile("range", ".txt");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            storeService.copyResource(so, channel);
+        }
+        assertEquals(text, new String(Files.readAllBytes(target)));
+        Files.delete(target);
+
+        byte[] bytes = new byte[100_000];
+        new Random(2).nextBytes(bytes);
+        metadata.put(StoragePropertyNames.NAME.value(), "range.bin");
+        StorageObject large = storeService.storeSimpleDocument(new ByteArrayInputStream(bytes), "application/octet-stream", metadata, parent);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            ParallelRangeDownloader concurrent = new ParallelRangeDownloader(storageDriver, executorService, 1000, 8);
+            try (InputStream is = concurrent.download(large.getKey(), bytes.length)) {
+                assertArrayEquals(bytes, is.readAllBytes());
+            }
+            target = Files.createTempFile("range", ".bin");
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                concurrent.download(large.getKey(), bytes.length, channel);
+            }
+            assertArrayEquals(bytes, Files.readAllBytes(target));
+            Files.delete(target);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
     @Test
     public void testDeleteEmptyDirectory() {
 
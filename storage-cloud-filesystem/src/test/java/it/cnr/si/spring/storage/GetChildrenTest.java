@@ -15,9 +15,8 @@ import org.springframework.util.Assert;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.stream.Collectors;
 
 @RunWith(SpringRunner.class)
 @ContextConfiguration("classpath:storage-filesystem-test-context.xml")
@@ -57,7 +56,7 @@ public class GetChildrenTest {
 
         Assert.isTrue(children.stream()
                         .map(so -> so.getPath())
-                        .noneMatch(so -> so.endsWith("properties"))
+                        .noneMatch(so -> so.endsWith("properties") || so.endsWith(".meta"))
         , "Some .properties files were found");
 
         Assert.isTrue(
@@ -76,7 +75,7 @@ public class GetChildrenTest {
 
         Assert.isTrue(children.stream()
                         .map(so -> so.getPath())
-                        .noneMatch(so -> so.endsWith("properties"))
+                        .noneMatch(so -> so.endsWith("properties") || so.endsWith(".meta"))
                 , "Some .properties files were found");
 
         Assert.isTrue(
@@ -91,6 +90,29 @@ public class GetChildrenTest {
         );
     }
 
+    @Test
+    public void getChildrenPageFollowsContinuationToken() {
+
+        Set<String> expected = storeService.getChildren("/").stream()
+                .map(StorageObject::getKey)
+                .collect(Collectors.toSet());
+
+        List<String> paged = new ArrayList<>();
+        StoragePage page = storeService.getChildrenPage("/", 1, null);
+        paged.addAll(page.getItems().stream().map(StorageObject::getKey).collect(Collectors.toList()));
+        while (page.hasNext()) {
+            org.junit.Assert.assertEquals(1, page.getItems().size());
+            page = storeService.getChildrenPage("/", 1, page.getContinuationToken());
+            paged.addAll(page.getItems().stream().map(StorageObject::getKey).collect(Collectors.toList()));
+        }
+
+        org.junit.Assert.assertEquals(expected.size(), paged.size());
+        org.junit.Assert.assertEquals(expected, new HashSet<>(paged));
+        org.junit.Assert.assertEquals(expected, storeService.streamChildren("/")
+                .map(StorageObject::getKey)
+                .collect(Collectors.toSet()));
+    }
+
     @Test
     public void addAspect() {
         storeService.addAspect(savedFile, ASPECT);
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package it.cnr.si.spring.storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Uploads a stream: content of known length up to one part, or shorter than {@link #SMALL_OBJECT_SIZE},
+ * goes with a single PutObject, longer content with a multipart upload whose parts are sent in parallel while the stream is read.
+ * Part buffers come from a bounded pool shared by every multipart upload, so heap usage does not grow with the object size.
+ */
+class S3MultipartUploader {
+
+    /**
+     * length of a stream that cannot be known in advance
+     */
+    static final long UNKNOWN_LENGTH = -1;
+    /**
+     * smallest part accepted by S3, except for the last one
+     */
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    /**
+     * most parts accepted by S3 in a multipart upload
+     */
+    static final int MAX_PARTS = 10000;
+    /**
+     * streams of unknown length are first read into a buffer of this size, outside the pool
+     */
+    static final int SMALL_OBJECT_SIZE = 64 * 1024;
+
+    private final AmazonS3 amazonS3;
+    private final Executor executor;
+    private final int partSize;
+    private final int maxBuffers;
+    private final BlockingQueue<byte[]> buffers;
+    private final AtomicInteger allocatedBuffers = new AtomicInteger();
+
+    S3MultipartUploader(AmazonS3 amazonS3, Executor executor, int partSize, int maxBuffers) {
+        this.amazonS3 = amazonS3;
+        this.executor = executor;
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.maxBuffers = Math.max(2, maxBuffers);
+        this.buffers = new ArrayBlockingQueue<>(this.maxBuffers);
+    }
+
+    /**
+     * @param bucketName     bucket
+     * @param key            object key
+     * @param inputStream    content, read up to the end but not closed
+     * @param length         content length or {@link #UNKNOWN_LENGTH}
+     * @param objectMetadata metadata of the new object, its content length is set on the single PutObject path
+     * @return number of bytes uploaded
+     * @throws IOException if the stream cannot be read, the multipart upload is aborted
+     */
+    long upload(String bucketName, String key, InputStream inputStream, long length, ObjectMetadata objectMetadata) throws IOException {
+        final long contentLength = length < 0 ? knownLength(inputStream) : length;
+        if (contentLength >= 0 && contentLength <= partSize) {
+            objectMetadata.setContentLength(contentLength);
+            amazonS3.putObject(bucketName, key, inputStream, objectMetadata);
+            return contentLength;
+        }
+        byte[] head = null;
+        int headLength = 0;
+        if (contentLength < 0) {
+            head = new byte[SMALL_OBJECT_SIZE];
+            headLength = IOUtils.read(inputStream, head);
+            if (headLength < SMALL_OBJECT_SIZE)
+                return putObject(bucketName, key, head, headLength, objectMetadata);
+        }
+        final int size = partSize(contentLength);
+        final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+        byte[] buffer = acquire(size, parts);
+        int read;
+        try {
+            if (head != null)
+                System.arraycopy(head, 0, buffer, 0, headLength);
+            read = headLength + IOUtils.read(inputStream, buffer, headLength, size - headLength);
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+        if (read < size) {
+            try {
+                return putObject(bucketName, key, buffer, read, objectMetadata);
+            } finally {
+                release(buffer);
+            }
+        }
+        final String uploadId = amazonS3.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucketName, key, objectMetadata)).getUploadId();
+        long uploaded = 0;
+        try {
+            while (read > 0) {
+                if (parts.size() == MAX_PARTS)
+                    throw new StorageException(StorageException.Type.GENERIC,
+                            "Upload of " + key + " exceeds " + MAX_PARTS + " parts of " + size + " bytes, raise cnr.storage.s3.partSize");
+                uploaded += read;
+                parts.add(uploadPart(bucketName, key, uploadId, parts.size() + 1, buffer, read));
+                buffer = null;
+                buffer = acquire(size, parts);
+                parts.stream()
+                        .filter(CompletableFuture::isCompletedExceptionally)
+                        .findAny()
+                        .ifPresent(CompletableFuture::join);
+                read = IOUtils.read(inputStream, buffer);
+            }
+            release(buffer);
+            buffer = null;
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId,
+                    parts.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+            return uploaded;
+        } catch (IOException | RuntimeException e) {
+            if (buffer != null)
+                release(buffer);
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture[parts.size()]))
+                    .exceptionally(throwable -> null)
+                    .join();
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            throw e;
+        }
+    }
+
+    /**
+     * the configured part size, raised when a known length would need more than {@link #MAX_PARTS} parts
+     */
+    int partSize(long contentLength) {
+        return (int) Math.max(partSize, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    /**
+     * buffers allocated by the pool so far
+     */
+    int allocatedBuffers() {
+        return allocatedBuffers.get();
+    }
+
+    private long putObject(String bucketName, String key, byte[] buffer, int length, ObjectMetadata objectMetadata) {
+        objectMetadata.setContentLength(length);
+        amazonS3.putObject(bucketName, key, new ByteArrayInputStream(buffer, 0, length), objectMetadata);
+        return length;
+    }
+
+    /**
+     * bytes left in streams whose length is known without reading them
+     */
+    private static long knownLength(InputStream inputStream) throws IOException {
+        if (inputStream instanceof ByteArrayInputStream)
+            return inputStream.available();
+        if (inputStream instanceof FileInputStream)
+            return ((FileInputStream) inputStream).getChannel().size() - ((FileInputStream) inputStream).getChannel().position();
+        return UNKNOWN_LENGTH;
+    }
+
+    private CompletableFuture<PartETag> uploadPart(String bucketName, String key, String uploadId,
+                                                   int partNumber, byte[] buffer, int length) {
+        return CompletableFuture
+                .supplyAsync(() -> amazonS3.uploadPart(new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                        .withPartSize(length)).getPartETag(), executor)
+                .whenComplete((partETag, throwable) -> release(buffer));
+    }
+
+    /**
+     * a free buffer, a new one while the pool is below its size, otherwise waits for a part of the same upload;
+     * an upload without parts in flight gets a buffer outside the pool instead of waiting for the other uploads.
+     * Parts larger than the configured size never come from the pool, at most maxBuffers of them are in flight.
+     */
+    private byte[] acquire(int size, List<CompletableFuture<PartETag>> parts) {
+        while (true) {
+            if (size == partSize) {
+                byte[] buffer = buffers.poll();
+                if (buffer != null)
+                    return buffer;
+                if (allocatedBuffers.getAndUpdate(allocated -> allocated < maxBuffers ? allocated + 1 : allocated) < maxBuffers)
+                    return new byte[partSize];
+            } else if (parts.stream().filter(part -> !part.isDone()).count() < maxBuffers) {
+                return new byte[size];
+            }
+            Optional<CompletableFuture<PartETag>> inFlight = parts.stream()
+                    .filter(part -> !part.isDone())
+                    .findFirst();
+            if (!inFlight.isPresent())
+                return new byte[size];
+            inFlight.get().handle((partETag, throwable) -> null).join();
+        }
+    }
+
+    private void release(byte[] buffer) {
+        if (buffer.length == partSize)
+            buffers.offer(buffer);
+    }
+}
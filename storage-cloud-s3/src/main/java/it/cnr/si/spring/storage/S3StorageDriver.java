@@ -18,14 +18,27 @@
 package it.cnr.si.spring.storage;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectResult;
-import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import it.cnr.si.spring.storage.condition.StorageDriverIsS3;
 import it.cnr.si.spring.storage.config.S3StorageConfigurationProperties;
 import it.cnr.si.spring.storage.config.StoragePropertyNames;
-import org.apache.commons.io.IOUtils;
+import it.cnr.si.util.DaemonThreadFactory;
+import jakarta.annotation.PreDestroy;
 import org.apache.http.HttpStatus;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.slf4j.Logger;
@@ -38,7 +51,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by marco.spasiano on 06/07/17.
@@ -48,14 +65,56 @@ import java.util.stream.Collectors;
 public class S3StorageDriver implements StorageDriver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(S3StorageDriver.class);
+    /**
+     * limit of keys accepted by a single DeleteObjects request
+     */
+    private static final int MAX_DELETE_KEYS = 1000;
+    /**
+     * largest object accepted by a single CopyObject request
+     */
+    private static final long MAX_COPY_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+    /**
+     * properties derived from the object itself rather than from its user metadata
+     */
+    private static final List<String> SYSTEM_PROPERTIES = Arrays.asList(
+            StoragePropertyNames.CONTENT_STREAM_LENGTH.value(),
+            StoragePropertyNames.CONTENT_STREAM_MIME_TYPE.value(),
+            StoragePropertyNames.ALFCMIS_NODEREF.value(),
+            StoragePropertyNames.ID.value(),
+            StoragePropertyNames.NAME.value(),
+            StoragePropertyNames.BASE_TYPE_ID.value());
 
     private AmazonS3 amazonS3;
     private S3StorageConfigurationProperties s3StorageConfigurationProperties;
+    /**
+     * runs the HEAD requests of the children listing and the parts of multipart uploads and copies
+     */
+    private ExecutorService executorService;
+    private S3MultipartUploader multipartUploader;
+    /**
+     * converts the ObjectMetadata of an object one property at a time
+     */
+    private final LazyStorageObject.MetadataLoader<ObjectMetadata> metadataLoader = new LazyStorageObject.MetadataLoader<ObjectMetadata>() {
+        @Override
+        public Object getPropertyValue(String key, ObjectMetadata objectMetadata, String name) {
+            return getUserMetadata(key, objectMetadata, name);
+        }
 
+        @Override
+        public Map<String, ?> getProperties(String key, ObjectMetadata objectMetadata) {
+            return getUserMetadata(key, objectMetadata);
+        }
+    };
 
     public S3StorageDriver(S3StorageConfigurationProperties s3StorageConfigurationProperties, AmazonS3 amazonS3) {
         this.s3StorageConfigurationProperties = s3StorageConfigurationProperties;
         this.amazonS3 = amazonS3;
+        this.executorService = Executors.newFixedThreadPool(
+                Math.max(1, s3StorageConfigurationProperties.getParallelism()), new DaemonThreadFactory("s3-storage-"));
+        this.multipartUploader = new S3MultipartUploader(amazonS3, executorService,
+                s3StorageConfigurationProperties.getPartSize(), s3StorageConfigurationProperties.getPartBuffers());
     }
 
     private void setUserMetadata(ObjectMetadata objectMetadata, Map<String, Object> metadata) {
@@ -81,35 +140,44 @@ public class S3StorageDriver implements StorageDriver {
 
     private Map<String, ?> getUserMetadata(String key, ObjectMetadata objectMetadata) {
         Map<String, Object> result = new HashMap<String, Object>();
-        result.put(StoragePropertyNames.CONTENT_STREAM_LENGTH.value(), BigInteger.valueOf(objectMetadata.getContentLength()));
-        result.put(StoragePropertyNames.CONTENT_STREAM_MIME_TYPE.value(), objectMetadata.getContentType());
-        result.put(StoragePropertyNames.ALFCMIS_NODEREF.value(), key);
-        result.put(StoragePropertyNames.ID.value(), key);
-        result.put(StoragePropertyNames.NAME.value(),
-                Optional.ofNullable(key.lastIndexOf(SUFFIX))
-                        .filter(index -> index > -1)
-                        .map(index -> key.substring(index) + 1)
-                        .orElse(key)
-        );
-        result.put(StoragePropertyNames.BASE_TYPE_ID.value(),
-                Optional.of(objectMetadata.getContentLength())
-                        .filter(aLong -> aLong > 0)
-                        .map(aLong -> StoragePropertyNames.CMIS_DOCUMENT.value())
-                        .orElse(StoragePropertyNames.CMIS_FOLDER.value()));
-        s3StorageConfigurationProperties.getMetadataKeys().entrySet().stream()
-                .forEach(entry -> {
-                    final String userMetaDataOf = objectMetadata.getUserMetaDataOf(entry.getValue());
-                    if (entry.getKey().equals(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value())) {
-                        result.put(entry.getKey(), Optional.ofNullable(userMetaDataOf)
-                                .map(s -> Arrays.asList(s.split(","))).orElse(Collections.emptyList()));
-                    } else {
-                        result.put(entry.getKey(), userMetaDataOf);
-                    }
-                });
-
+        Stream.concat(SYSTEM_PROPERTIES.stream(), s3StorageConfigurationProperties.getMetadataKeys().keySet().stream())
+                .forEach(name -> result.put(name, getUserMetadata(key, objectMetadata, name)));
         return result;
     }
 
+    private Object getUserMetadata(String key, ObjectMetadata objectMetadata, String name) {
+        final Map<String, String> metadataKeys = s3StorageConfigurationProperties.getMetadataKeys();
+        if (metadataKeys.containsKey(name)) {
+            final String userMetaDataOf = objectMetadata.getUserMetaDataOf(metadataKeys.get(name));
+            if (name.equals(StoragePropertyNames.SECONDARY_OBJECT_TYPE_IDS.value())) {
+                return Optional.ofNullable(userMetaDataOf)
+                        .map(s -> Arrays.asList(s.split(","))).orElse(Collections.emptyList());
+            }
+            return userMetaDataOf;
+        }
+        if (name.equals(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()))
+            return BigInteger.valueOf(objectMetadata.getContentLength());
+        if (name.equals(StoragePropertyNames.CONTENT_STREAM_MIME_TYPE.value()))
+            return objectMetadata.getContentType();
+        if (name.equals(StoragePropertyNames.ALFCMIS_NODEREF.value()) || name.equals(StoragePropertyNames.ID.value()))
+            return key;
+        if (name.equals(StoragePropertyNames.NAME.value()))
+            return Optional.ofNullable(key.lastIndexOf(SUFFIX))
+                    .filter(index -> index > -1)
+                    .map(index -> key.substring(index) + 1)
+                    .orElse(key);
+        if (name.equals(StoragePropertyNames.BASE_TYPE_ID.value()))
+            return Optional.of(objectMetadata.getContentLength())
+                    .filter(aLong -> aLong > 0)
+                    .map(aLong -> StoragePropertyNames.CMIS_DOCUMENT.value())
+                    .orElse(StoragePropertyNames.CMIS_FOLDER.value());
+        return null;
+    }
+
+    private StorageObject getStorageObject(String key, ObjectMetadata objectMetadata) {
+        return new LazyStorageObject<ObjectMetadata>(key, key, objectMetadata, metadataLoader);
+    }
+
     @Override
     public StorageObject createFolder(String path, String name, Map<String, Object> metadata) {
         final String key = Optional.ofNullable(path)
@@ -159,51 +227,105 @@ public class S3StorageDriver implements StorageDriver {
                 });
         String key = parentPath.concat(SUFFIX).concat((String) metadataProperties.get(StoragePropertyNames.NAME.value()));
         ObjectMetadata objectMetadata = new ObjectMetadata();
+        Optional.ofNullable(contentType).ifPresent(objectMetadata::setContentType);
         setUserMetadata(objectMetadata, metadataProperties);
-        try {
-            objectMetadata.setContentLength(Long.valueOf(inputStream.available()).longValue());
-            PutObjectResult putObjectResult = amazonS3.putObject(s3StorageConfigurationProperties.getBucketName(),
-                    key, inputStream, objectMetadata);
+        long length = Optional.ofNullable(metadataProperties.get(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()))
+                .filter(Number.class::isInstance)
+                .map(Number.class::cast)
+                .map(Number::longValue)
+                .orElse(S3MultipartUploader.UNKNOWN_LENGTH);
+        return upload(key, inputStream, length, objectMetadata);
+    }
 
-            return new StorageObject(key, key, getUserMetadata(key, putObjectResult.getMetadata()));
+    private StorageObject upload(String key, InputStream inputStream, long length, ObjectMetadata objectMetadata) {
+        try (InputStream content = inputStream) {
+            objectMetadata.setContentLength(multipartUploader.upload(
+                    s3StorageConfigurationProperties.getBucketName(), key, content, length, objectMetadata));
+            return getStorageObject(key, objectMetadata);
         } catch (IOException e) {
             throw new StorageException(StorageException.Type.GENERIC, e);
         }
     }
 
+    /**
+     * the metadata that survive a rewrite of the object, without the ones computed by the store (length, etag...)
+     */
+    private ObjectMetadata copyMetadata(ObjectMetadata currentMetadata) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        Optional.ofNullable(currentMetadata.getContentType()).ifPresent(objectMetadata::setContentType);
+        Optional.ofNullable(currentMetadata.getContentEncoding()).ifPresent(objectMetadata::setContentEncoding);
+        Optional.ofNullable(currentMetadata.getContentDisposition()).ifPresent(objectMetadata::setContentDisposition);
+        Optional.ofNullable(currentMetadata.getCacheControl()).ifPresent(objectMetadata::setCacheControl);
+        objectMetadata.setUserMetadata(new HashMap<>(currentMetadata.getUserMetadata()));
+        return objectMetadata;
+    }
+
+    /**
+     * User metadata are merged into the existing ones and written by a server-side copy of the object onto itself
+     * (or onto the new key when cmis:name changes), the content never leaves the store.
+     */
     @Override
     public void updateProperties(StorageObject storageObject, Map<String, Object> metadataProperties) {
-        ObjectMetadata objectMetadata = new ObjectMetadata();
+        final String bucketName = s3StorageConfigurationProperties.getBucketName();
+        final String key = storageObject.getKey();
+        final ObjectMetadata currentMetadata = amazonS3.getObjectMetadata(bucketName, key);
+        ObjectMetadata objectMetadata = copyMetadata(currentMetadata);
         setUserMetadata(objectMetadata, metadataProperties);
-        S3Object s3Object = amazonS3.getObject(s3StorageConfigurationProperties.getBucketName(), storageObject.getKey());
-        final PutObjectResult putObjectResult = amazonS3.putObject(s3StorageConfigurationProperties.getBucketName(), s3Object.getKey(), s3Object.getObjectContent(), objectMetadata);
-        Optional.ofNullable(metadataProperties.get(StoragePropertyNames.NAME.value()))
+
+        final String targetKey = Optional.ofNullable(metadataProperties.get(StoragePropertyNames.NAME.value()))
                 .map(String.class::cast)
-                .filter(s -> !s.equals(s3Object.getKey().substring(s3Object.getKey().lastIndexOf(SUFFIX))))
-                .ifPresent(s -> {
-                    amazonS3.copyObject(s3StorageConfigurationProperties.getBucketName(),
-                            s3Object.getKey(),
-                            s3StorageConfigurationProperties.getBucketName(),
-                            s3Object.getKey().substring(s3Object.getKey().lastIndexOf(SUFFIX) + 1).concat(s));
-                    amazonS3.deleteObject(s3StorageConfigurationProperties.getBucketName(), s3Object.getKey());
-                });
+                .filter(s -> !s.equals(key.substring(key.lastIndexOf(SUFFIX) + 1)))
+                .map(s -> key.substring(0, key.lastIndexOf(SUFFIX) + 1).concat(s))
+                .orElse(key);
+        copyObject(key, targetKey, currentMetadata.getContentLength(), objectMetadata);
+        if (!targetKey.equals(key)) {
+            amazonS3.deleteObject(bucketName, key);
+        }
     }
 
-    @Override
-    public StorageObject updateStream(String key, InputStream inputStream, String contentType) {
+    /**
+     * server-side copy with new metadata, multipart over the 5 GB limit of a single CopyObject
+     */
+    private void copyObject(String sourceKey, String targetKey, long contentLength, ObjectMetadata objectMetadata) {
+        final String bucketName = s3StorageConfigurationProperties.getBucketName();
+        if (contentLength <= MAX_COPY_OBJECT_SIZE) {
+            amazonS3.copyObject(new CopyObjectRequest(bucketName, sourceKey, bucketName, targetKey)
+                    .withNewObjectMetadata(objectMetadata));
+            return;
+        }
+        final String uploadId = amazonS3.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucketName, targetKey, objectMetadata)).getUploadId();
         try {
-            final byte[] bytes = IOUtils.toByteArray(inputStream);
-            ObjectMetadata objectMetadata = amazonS3.getObject(s3StorageConfigurationProperties.getBucketName(), key).getObjectMetadata().clone();
-            objectMetadata.setContentType(contentType);
-            objectMetadata.setContentLength(Long.valueOf(bytes.length));
-            PutObjectResult putObjectResult = amazonS3.putObject(s3StorageConfigurationProperties.getBucketName(),
-                    key, new ByteArrayInputStream(bytes), objectMetadata);
-            return new StorageObject(key, key, getUserMetadata(key, putObjectResult.getMetadata()));
-        } catch (IOException e) {
+            final long partSize = Math.max(COPY_PART_SIZE, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+            List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+            for (long firstByte = 0, partNumber = 1; firstByte < contentLength; firstByte += partSize, partNumber++) {
+                final CopyPartRequest copyPartRequest = new CopyPartRequest()
+                        .withSourceBucketName(bucketName)
+                        .withSourceKey(sourceKey)
+                        .withDestinationBucketName(bucketName)
+                        .withDestinationKey(targetKey)
+                        .withUploadId(uploadId)
+                        .withPartNumber((int) partNumber)
+                        .withFirstByte(firstByte)
+                        .withLastByte(Math.min(firstByte + partSize, contentLength) - 1);
+                parts.add(CompletableFuture.supplyAsync(() -> amazonS3.copyPart(copyPartRequest).getPartETag(), executorService));
+            }
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, targetKey, uploadId,
+                    parts.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+        } catch (RuntimeException e) {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, targetKey, uploadId));
             throw new StorageException(StorageException.Type.GENERIC, e);
         }
     }
 
+    @Override
+    public StorageObject updateStream(String key, InputStream inputStream, String contentType) {
+        ObjectMetadata objectMetadata = copyMetadata(
+                amazonS3.getObjectMetadata(s3StorageConfigurationProperties.getBucketName(), key));
+        objectMetadata.setContentType(contentType);
+        return upload(key, inputStream, S3MultipartUploader.UNKNOWN_LENGTH, objectMetadata);
+    }
+
     @Override
     public InputStream getInputStream(String key) {
         return amazonS3.getObject(s3StorageConfigurationProperties.getBucketName(),
@@ -217,6 +339,18 @@ public class S3StorageDriver implements StorageDriver {
         ).getObjectContent();
     }
 
+    @Override
+    public InputStream getInputStream(String key, long offset, long length) {
+        if (length <= 0)
+            return new ByteArrayInputStream(new byte[0]);
+        return amazonS3.getObject(new GetObjectRequest(s3StorageConfigurationProperties.getBucketName(),
+                Optional.ofNullable(key)
+                        .map(s -> s.indexOf(SUFFIX) == 0 ? s.substring(1) : s)
+                        .orElseThrow(() -> new StorageException(StorageException.Type.NOT_FOUND, "Key is null")))
+                .withRange(offset, offset + length - 1)
+        ).getObjectContent();
+    }
+
     @Override
     public InputStream getInputStream(String key, String versionId) {
         return getInputStream(key);
@@ -242,6 +376,46 @@ public class S3StorageDriver implements StorageDriver {
         return exists;
     }
 
+    /**
+     * Objects are removed with multi-object DeleteObjects requests of at most 1000 keys, in quiet mode.
+     * S3 does not report missing keys, so they are returned as deleted, unlike {@link #delete(String)}
+     * which checks the existence of the single key first.
+     */
+    @Override
+    public Map<String, Boolean> deleteAll(Collection<String> keys) {
+        List<String> s3Keys = keys.stream()
+                .map(S3StorageDriver::s3Key)
+                .distinct()
+                .collect(Collectors.toList());
+        Set<String> failed = new HashSet<>();
+        for (int from = 0; from < s3Keys.size(); from += MAX_DELETE_KEYS) {
+            List<String> batch = s3Keys.subList(from, Math.min(from + MAX_DELETE_KEYS, s3Keys.size()));
+            try {
+                amazonS3.deleteObjects(new DeleteObjectsRequest(s3StorageConfigurationProperties.getBucketName())
+                        .withQuiet(true)
+                        .withKeys(batch.toArray(new String[batch.size()])));
+            } catch (MultiObjectDeleteException _ex) {
+                _ex.getErrors().forEach(deleteError -> {
+                    LOGGER.warn("item {} not deleted: {} {}", deleteError.getKey(), deleteError.getCode(), deleteError.getMessage());
+                    failed.add(deleteError.getKey());
+                });
+            }
+        }
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        keys.forEach(id -> result.put(id, !failed.contains(s3Key(id))));
+        return result;
+    }
+
+    /**
+     * the object key without the leading separator, "/a" and "a" are the same object
+     */
+    private static String s3Key(String id) {
+        return Optional.of(id)
+                .filter(s -> !s.equals(SUFFIX) && s.startsWith(SUFFIX))
+                .map(s -> s.substring(1))
+                .orElse(id);
+    }
+
     @Override
     public StorageObject getObject(String key) {
         try {
@@ -249,8 +423,8 @@ public class S3StorageDriver implements StorageDriver {
                     .filter(s -> !s.equals(SUFFIX) && s.startsWith(SUFFIX))
                     .map(s -> s.substring(1))
                     .orElse(key);
-            S3Object s3Object = amazonS3.getObject(s3StorageConfigurationProperties.getBucketName(), key);
-            return new StorageObject(s3Object.getKey(), s3Object.getKey(), getUserMetadata(s3Object.getKey(), s3Object.getObjectMetadata()));
+            ObjectMetadata objectMetadata = amazonS3.getObjectMetadata(s3StorageConfigurationProperties.getBucketName(), key);
+            return getStorageObject(key, objectMetadata);
         } catch (AmazonS3Exception _ex) {
             if (_ex.getStatusCode() == HttpStatus.SC_NOT_FOUND)
                 return null;
@@ -275,12 +449,67 @@ public class S3StorageDriver implements StorageDriver {
 
     @Override
     public List<StorageObject> getChildren(String key) {
-        return amazonS3
-                .listObjects(s3StorageConfigurationProperties.getBucketName(), key)
+        return streamChildren(key).collect(Collectors.toList());
+    }
+
+    /**
+     * The continuation token is the marker of the next listObjects request, i.e. the last key of the page.
+     */
+    @Override
+    public StoragePage getChildrenPage(String key, int pageSize, String continuationToken) {
+        final ObjectListing objectListing = amazonS3.listObjects(new ListObjectsRequest()
+                .withBucketName(s3StorageConfigurationProperties.getBucketName())
+                .withPrefix(key)
+                .withMarker(continuationToken)
+                .withMaxKeys(pageSize));
+        final List<S3ObjectSummary> summaries = objectListing
                 .getObjectSummaries()
                 .stream()
                 .filter(s3ObjectSummary -> !s3ObjectSummary.getKey().equals(key))
-                .map(s3Object -> getObject(s3Object.getKey()))
+                .collect(Collectors.toList());
+        final List<StorageObject> children = s3StorageConfigurationProperties.isChildrenUserMetadata() ?
+                getStorageObjectsWithUserMetadata(summaries) :
+                summaries.stream()
+                        .map(this::getStorageObject)
+                        .collect(Collectors.toList());
+        return new StoragePage(children, Optional.of(objectListing)
+                .filter(ObjectListing::isTruncated)
+                .map(listing -> Optional.ofNullable(listing.getNextMarker())
+                        .orElseGet(() -> listing.getObjectSummaries().get(listing.getObjectSummaries().size() - 1).getKey()))
+                .orElse(null));
+    }
+
+    /**
+     * the object as far as the listing knows it: length, last modification and etag, without user metadata
+     */
+    private StorageObject getStorageObject(S3ObjectSummary s3ObjectSummary) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(s3ObjectSummary.getSize());
+        objectMetadata.setLastModified(s3ObjectSummary.getLastModified());
+        objectMetadata.setHeader(Headers.ETAG, s3ObjectSummary.getETag());
+        return getStorageObject(s3ObjectSummary.getKey(), objectMetadata);
+    }
+
+    /**
+     * user metadata are fetched with parallel HEAD requests, objects deleted in the meantime are skipped
+     */
+    private List<StorageObject> getStorageObjectsWithUserMetadata(List<S3ObjectSummary> summaries) {
+        return summaries.stream()
+                .map(s3ObjectSummary -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        ObjectMetadata objectMetadata = amazonS3.getObjectMetadata(
+                                s3StorageConfigurationProperties.getBucketName(), s3ObjectSummary.getKey());
+                        return getStorageObject(s3ObjectSummary.getKey(), objectMetadata);
+                    } catch (AmazonS3Exception _ex) {
+                        if (_ex.getStatusCode() == HttpStatus.SC_NOT_FOUND)
+                            return null;
+                        throw new StorageException(StorageException.Type.GENERIC, _ex);
+                    }
+                }, executorService))
+                .collect(Collectors.toList())
+                .stream()
+                .map(CompletableFuture::join)
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
     }
 
@@ -340,5 +569,13 @@ public class S3StorageDriver implements StorageDriver {
         LOGGER.info("init {}...", S3StorageDriver.class.getSimpleName());
     }
 
+    /**
+     * stops the threads of the parallel requests, the ones in flight are completed
+     */
+    @PreDestroy
+    public void destroy() {
+        executorService.shutdown();
+    }
+
 
 }
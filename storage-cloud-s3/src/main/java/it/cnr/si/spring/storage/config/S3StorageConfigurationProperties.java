@@ -43,6 +43,14 @@ public class S3StorageConfigurationProperties {
     private Integer deleteAfter;
     @Value("${cnr.storage.s3.signingRegion}")
     private String signingRegion;
+    @Value("${cnr.storage.s3.childrenUserMetadata:true}")
+    private boolean childrenUserMetadata;
+    @Value("${cnr.storage.s3.parallelism:16}")
+    private int parallelism;
+    @Value("${cnr.storage.s3.partSize:8388608}")
+    private int partSize;
+    @Value("${cnr.storage.s3.partBuffers:16}")
+    private int partBuffers;
 
     @Value("#{${cnr.storage.metadataKeys}}")
     private Map<String, String> metadataKeys;
@@ -95,6 +103,38 @@ public class S3StorageConfigurationProperties {
         this.signingRegion = signingRegion;
     }
 
+    public boolean isChildrenUserMetadata() {
+        return childrenUserMetadata;
+    }
+
+    public void setChildrenUserMetadata(boolean childrenUserMetadata) {
+        this.childrenUserMetadata = childrenUserMetadata;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    public void setPartSize(int partSize) {
+        this.partSize = partSize;
+    }
+
+    public int getPartBuffers() {
+        return partBuffers;
+    }
+
+    public void setPartBuffers(int partBuffers) {
+        this.partBuffers = partBuffers;
+    }
+
     public Map<String, String> getMetadataKeys() {
         return metadataKeys;
     }
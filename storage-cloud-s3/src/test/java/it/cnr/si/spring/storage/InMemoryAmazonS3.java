@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package it.cnr.si.spring.storage;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.apache.http.HttpStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+/**
+ * In-process stand-in for an S3 endpoint, holding every object in heap.
+ * Only the operations used by {@link S3StorageDriver} are implemented,
+ * so that the driver can be tested and benchmarked without network noise.
+ */
+public class InMemoryAmazonS3 extends AbstractAmazonS3 {
+
+    private static final int MAX_KEYS = 1000;
+
+    private final Map<String, ConcurrentNavigableMap<String, Entry>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, MultipartUpload> multipartUploads = new ConcurrentHashMap<>();
+
+    private ConcurrentNavigableMap<String, Entry> bucket(String bucketName) {
+        return buckets.computeIfAbsent(bucketName, s -> new ConcurrentSkipListMap<>());
+    }
+
+    private Entry entry(String bucketName, String key) {
+        return Optional.ofNullable(bucket(bucketName).get(key))
+                .orElseThrow(() -> notFound(key));
+    }
+
+    private static AmazonS3Exception notFound(String key) {
+        AmazonS3Exception exception = new AmazonS3Exception("The specified key does not exist: " + key);
+        exception.setStatusCode(HttpStatus.SC_NOT_FOUND);
+        exception.setErrorCode("NoSuchKey");
+        return exception;
+    }
+
+    private static byte[] readAll(InputStream inputStream) {
+        try (InputStream is = inputStream) {
+            return is.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ObjectMetadata store(String bucketName, String key, byte[] content, ObjectMetadata objectMetadata) {
+        ObjectMetadata metadata = Optional.ofNullable(objectMetadata)
+                .map(ObjectMetadata::clone)
+                .orElseGet(ObjectMetadata::new);
+        metadata.setContentLength(content.length);
+        metadata.setLastModified(new Date());
+        metadata.setHeader("ETag", Integer.toHexString(Arrays.hashCode(content)));
+        bucket(bucketName).put(key, new Entry(content, metadata));
+        return metadata.clone();
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+        return putObject(new PutObjectRequest(bucketName, key, input, metadata));
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest putObjectRequest) {
+        final byte[] content;
+        try {
+            content = Optional.ofNullable(putObjectRequest.getFile())
+                    .map(file -> {
+                        try {
+                            return Files.readAllBytes(file.toPath());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .orElseGet(() -> readAll(putObjectRequest.getInputStream()));
+        } catch (UncheckedIOException e) {
+            throw new SdkClientException(e.getCause());
+        }
+        ObjectMetadata metadata = store(putObjectRequest.getBucketName(), putObjectRequest.getKey(), content, putObjectRequest.getMetadata());
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setMetadata(metadata);
+        putObjectResult.setETag(metadata.getETag());
+        return putObjectResult;
+    }
+
+    @Override
+    public S3Object getObject(String bucketName, String key) {
+        return getObject(new GetObjectRequest(bucketName, key));
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest getObjectRequest) {
+        Entry entry = entry(getObjectRequest.getBucketName(), getObjectRequest.getKey());
+        int offset = 0, length = entry.content.length;
+        long[] range = getObjectRequest.getRange();
+        if (range != null) {
+            offset = (int) Math.min(range[0], entry.content.length);
+            length = (int) Math.min(range[1] + 1, entry.content.length) - offset;
+        }
+        S3Object s3Object = new S3Object();
+        s3Object.setBucketName(getObjectRequest.getBucketName());
+        s3Object.setKey(getObjectRequest.getKey());
+        s3Object.setObjectMetadata(entry.metadata.clone());
+        s3Object.setObjectContent(new ByteArrayInputStream(entry.content, offset, length));
+        return s3Object;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        return getObjectMetadata(new GetObjectMetadataRequest(bucketName, key));
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest getObjectMetadataRequest) {
+        return entry(getObjectMetadataRequest.getBucketName(), getObjectMetadataRequest.getKey()).metadata.clone();
+    }
+
+    @Override
+    public boolean doesObjectExist(String bucketName, String objectName) {
+        return bucket(bucketName).containsKey(objectName);
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+        bucket(bucketName).remove(key);
+    }
+
+    @Override
+    public void deleteObject(DeleteObjectRequest deleteObjectRequest) {
+        deleteObject(deleteObjectRequest.getBucketName(), deleteObjectRequest.getKey());
+    }
+
+    @Override
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest deleteObjectsRequest) {
+        if (deleteObjectsRequest.getKeys().size() > MAX_KEYS) {
+            AmazonS3Exception exception = new AmazonS3Exception("The XML you provided was not well-formed");
+            exception.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+            exception.setErrorCode("MalformedXML");
+            throw exception;
+        }
+        List<DeleteObjectsResult.DeletedObject> deletedObjects = deleteObjectsRequest.getKeys().stream()
+                .map(keyVersion -> {
+                    deleteObject(deleteObjectsRequest.getBucketName(), keyVersion.getKey());
+                    DeleteObjectsResult.DeletedObject deletedObject = new DeleteObjectsResult.DeletedObject();
+                    deletedObject.setKey(keyVersion.getKey());
+                    return deletedObject;
+                })
+                .collect(Collectors.toList());
+        return new DeleteObjectsResult(deleteObjectsRequest.getQuiet() ? Collections.emptyList() : deletedObjects);
+    }
+
+    @Override
+    public ObjectListing listObjects(String bucketName, String prefix) {
+        return listObjects(new ListObjectsRequest(bucketName, prefix, null, null, null));
+    }
+
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest listObjectsRequest) {
+        final String prefix = Optional.ofNullable(listObjectsRequest.getPrefix()).orElse("");
+        final String delimiter = listObjectsRequest.getDelimiter();
+        final int maxKeys = Optional.ofNullable(listObjectsRequest.getMaxKeys())
+                .map(integer -> Math.min(integer, MAX_KEYS))
+                .orElse(MAX_KEYS);
+        ObjectListing objectListing = new ObjectListing();
+        objectListing.setBucketName(listObjectsRequest.getBucketName());
+        objectListing.setPrefix(listObjectsRequest.getPrefix());
+        objectListing.setDelimiter(delimiter);
+        objectListing.setMarker(listObjectsRequest.getMarker());
+        objectListing.setMaxKeys(maxKeys);
+
+        ConcurrentNavigableMap<String, Entry> bucket = bucket(listObjectsRequest.getBucketName());
+        NavigableMap<String, Entry> view = Optional.ofNullable(listObjectsRequest.getMarker())
+                .<NavigableMap<String, Entry>>map(marker -> bucket.tailMap(marker, false))
+                .orElse(bucket.tailMap(prefix, true));
+        Set<String> commonPrefixes = new LinkedHashSet<>();
+        int count = 0;
+        String lastKey = null;
+        for (Map.Entry<String, Entry> entry : view.entrySet()) {
+            final String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                if (key.compareTo(prefix) > 0)
+                    break;
+                continue;
+            }
+            final String commonPrefix = Optional.ofNullable(delimiter)
+                    .map(s -> key.indexOf(s, prefix.length()))
+                    .filter(index -> index > -1)
+                    .map(index -> key.substring(0, index + delimiter.length()))
+                    .orElse(null);
+            if (commonPrefix != null && commonPrefixes.contains(commonPrefix)) {
+                lastKey = key;
+                continue;
+            }
+            if (count == maxKeys) {
+                objectListing.setTruncated(true);
+                objectListing.setNextMarker(lastKey);
+                break;
+            }
+            lastKey = key;
+            count++;
+            if (commonPrefix != null) {
+                commonPrefixes.add(commonPrefix);
+                continue;
+            }
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(listObjectsRequest.getBucketName());
+            summary.setKey(key);
+            summary.setSize(entry.getValue().content.length);
+            summary.setLastModified(entry.getValue().metadata.getLastModified());
+            summary.setETag(entry.getValue().metadata.getETag());
+            objectListing.getObjectSummaries().add(summary);
+        }
+        objectListing.setCommonPrefixes(new ArrayList<>(commonPrefixes));
+        return objectListing;
+    }
+
+    @Override
+    public ObjectListing listNextBatchOfObjects(ObjectListing previousObjectListing) {
+        if (!previousObjectListing.isTruncated())
+            return new ObjectListing();
+        return listObjects(new ListObjectsRequest(
+                previousObjectListing.getBucketName(),
+                previousObjectListing.getPrefix(),
+                previousObjectListing.getNextMarker(),
+                previousObjectListing.getDelimiter(),
+                previousObjectListing.getMaxKeys()));
+    }
+
+    @Override
+    public CopyObjectResult copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) {
+        return copyObject(new CopyObjectRequest(sourceBucketName, sourceKey, destinationBucketName, destinationKey));
+    }
+
+    @Override
+    public CopyObjectResult copyObject(CopyObjectRequest copyObjectRequest) {
+        Entry source = entry(copyObjectRequest.getSourceBucketName(), copyObjectRequest.getSourceKey());
+        ObjectMetadata metadata = store(
+                copyObjectRequest.getDestinationBucketName(),
+                copyObjectRequest.getDestinationKey(),
+                source.content,
+                Optional.ofNullable(copyObjectRequest.getNewObjectMetadata()).orElse(source.metadata));
+        CopyObjectResult copyObjectResult = new CopyObjectResult();
+        copyObjectResult.setETag(metadata.getETag());
+        copyObjectResult.setLastModifiedDate(metadata.getLastModified());
+        return copyObjectResult;
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        final String uploadId = UUID.randomUUID().toString();
+        multipartUploads.put(uploadId, new MultipartUpload(request.getObjectMetadata()));
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        final byte[] content = readAll(request.getInputStream());
+        if (content.length != request.getPartSize())
+            throw new SdkClientException("Part " + request.getPartNumber() + " has " + content.length + " bytes instead of " + request.getPartSize());
+        multipartUpload(request.getUploadId()).parts.put(request.getPartNumber(), content);
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(Integer.toHexString(Arrays.hashCode(content)));
+        return result;
+    }
+
+    @Override
+    public CopyPartResult copyPart(CopyPartRequest request) {
+        Entry source = entry(request.getSourceBucketName(), request.getSourceKey());
+        final byte[] content = Arrays.copyOfRange(source.content,
+                request.getFirstByte().intValue(), request.getLastByte().intValue() + 1);
+        multipartUpload(request.getUploadId()).parts.put(request.getPartNumber(), content);
+        CopyPartResult result = new CopyPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(Integer.toHexString(Arrays.hashCode(content)));
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        MultipartUpload multipartUpload = multipartUpload(request.getUploadId());
+        multipartUploads.remove(request.getUploadId());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        request.getPartETags().stream()
+                .sorted(Comparator.comparingInt(PartETag::getPartNumber))
+                .forEach(partETag -> content.writeBytes(multipartUpload.parts.get(partETag.getPartNumber())));
+        ObjectMetadata metadata = store(request.getBucketName(), request.getKey(), content.toByteArray(), multipartUpload.metadata);
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setETag(metadata.getETag());
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        multipartUploads.remove(request.getUploadId());
+    }
+
+    private MultipartUpload multipartUpload(String uploadId) {
+        return Optional.ofNullable(multipartUploads.get(uploadId))
+                .orElseThrow(() -> {
+                    AmazonS3Exception exception = new AmazonS3Exception("The specified upload does not exist: " + uploadId);
+                    exception.setStatusCode(HttpStatus.SC_NOT_FOUND);
+                    exception.setErrorCode("NoSuchUpload");
+                    return exception;
+                });
+    }
+
+    private static final class MultipartUpload {
+        private final ObjectMetadata metadata;
+        private final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+
+        private MultipartUpload(ObjectMetadata metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] content;
+        private final ObjectMetadata metadata;
+
+        private Entry(byte[] content, ObjectMetadata metadata) {
+            this.content = content;
+            this.metadata = metadata;
+        }
+    }
+}
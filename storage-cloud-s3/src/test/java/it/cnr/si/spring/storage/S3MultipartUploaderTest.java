@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class S3MultipartUploaderTest {
+
+    private static final String BUCKET = "bucket";
+
+    private AmazonS3 amazonS3;
+    private ExecutorService executorService;
+    private S3MultipartUploader uploader;
+
+    @Before
+    public void setUp() {
+        amazonS3 = new InMemoryAmazonS3();
+        executorService = Executors.newFixedThreadPool(4);
+        uploader = new S3MultipartUploader(amazonS3, executorService, S3MultipartUploader.MIN_PART_SIZE, 2);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testSmallUpload() throws IOException {
+        byte[] content = content(1024);
+        // lunghezza sconosciuta ma contenuto piccolo: PutObject senza buffer del pool
+        assertEquals(content.length, upload("piccolo", unknownLength(content), S3MultipartUploader.UNKNOWN_LENGTH));
+        // lunghezza nota e minore di una parte: PutObject direttamente dallo stream
+        byte[] document = content(S3MultipartUploader.MIN_PART_SIZE);
+        assertEquals(document.length, upload("documento", unknownLength(document), document.length));
+        assertEquals(0, uploader.allocatedBuffers());
+        assertArrayEquals(content, download("piccolo"));
+        assertArrayEquals(document, download("documento"));
+    }
+
+    @Test
+    public void testMultipartUpload() throws IOException {
+        byte[] content = content(3 * S3MultipartUploader.MIN_PART_SIZE + 12345);
+        assertEquals(content.length, upload("grande", unknownLength(content), S3MultipartUploader.UNKNOWN_LENGTH));
+        assertArrayEquals(content, download("grande"));
+        assertTrue(uploader.allocatedBuffers() <= 2);
+        // lunghezza nota: ByteArrayInputStream viene riconosciuto senza leggerlo
+        assertEquals(content.length, upload("noto", new ByteArrayInputStream(content), S3MultipartUploader.UNKNOWN_LENGTH));
+        assertArrayEquals(content, download("noto"));
+    }
+
+    @Test
+    public void testPartSize() {
+        assertEquals(S3MultipartUploader.MIN_PART_SIZE, uploader.partSize(S3MultipartUploader.UNKNOWN_LENGTH));
+        assertEquals(S3MultipartUploader.MIN_PART_SIZE, uploader.partSize(1024L * 1024 * 1024));
+        long length = 100L * 1024 * 1024 * 1024;
+        int partSize = uploader.partSize(length);
+        assertTrue(partSize > S3MultipartUploader.MIN_PART_SIZE);
+        assertTrue((length + partSize - 1) / partSize <= S3MultipartUploader.MAX_PARTS);
+    }
+
+    private long upload(String key, InputStream inputStream, long length) throws IOException {
+        return uploader.upload(BUCKET, key, inputStream, length, new ObjectMetadata());
+    }
+
+    private byte[] download(String key) throws IOException {
+        try (InputStream inputStream = amazonS3.getObject(BUCKET, key).getObjectContent()) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private static InputStream unknownLength(byte[] content) {
+        return new BufferedInputStream(new ByteArrayInputStream(content));
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2019  Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.si.spring.storage;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.*;
+import it.cnr.si.spring.storage.config.S3StorageConfigurationProperties;
+import it.cnr.si.spring.storage.config.StoragePropertyNames;
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The driver against {@link InMemoryAmazonS3}, the paths that a real endpoint makes slow or costly to reach
+ */
+public class S3StorageDriverTest {
+
+    private static final String BUCKET = "sigla";
+    private static final long GRANDE = 6L * 1024 * 1024 * 1024;
+    private static final String TESTO = "Consiglio Nazionale delle Ricerche";
+
+    private S3StorageConfigurationProperties properties;
+    private FakeAmazonS3 amazonS3;
+    private S3StorageDriver storageDriver;
+
+    /**
+     * reports GRANDE as the length of the keys in grandi, so that copies take the multipart path,
+     * answers 404 to the HEAD of the keys in scomparsi and can omit NextMarker as S3 does without a delimiter
+     */
+    static class FakeAmazonS3 extends InMemoryAmazonS3 {
+        final Set<String> grandi = new HashSet<>();
+        final Set<String> scomparsi = new HashSet<>();
+        final AtomicInteger heads = new AtomicInteger();
+        final Set<String> protetti = new HashSet<>();
+        final List<Integer> deleteBatches = new ArrayList<>();
+        boolean withoutNextMarker;
+        final List<CopyPartRequest> copiedParts = Collections.synchronizedList(new ArrayList<>());
+        final List<String> aborted = new ArrayList<>();
+        int failingPart;
+
+        @Override
+        public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest getObjectMetadataRequest) {
+            heads.incrementAndGet();
+            if (scomparsi.contains(getObjectMetadataRequest.getKey())) {
+                AmazonS3Exception exception = new AmazonS3Exception("Not Found");
+                exception.setStatusCode(HttpStatus.SC_NOT_FOUND);
+                throw exception;
+            }
+            ObjectMetadata objectMetadata = super.getObjectMetadata(getObjectMetadataRequest);
+            if (grandi.contains(getObjectMetadataRequest.getKey()))
+                objectMetadata.setContentLength(GRANDE);
+            return objectMetadata;
+        }
+
+        @Override
+        public DeleteObjectsResult deleteObjects(DeleteObjectsRequest deleteObjectsRequest) {
+            deleteBatches.add(deleteObjectsRequest.getKeys().size());
+            List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+            List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>();
+            for (DeleteObjectsRequest.KeyVersion keyVersion : deleteObjectsRequest.getKeys()) {
+                if (protetti.contains(keyVersion.getKey())) {
+                    MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                    error.setKey(keyVersion.getKey());
+                    error.setCode("AccessDenied");
+                    error.setMessage("Access Denied");
+                    errors.add(error);
+                } else {
+                    keys.add(keyVersion);
+                }
+            }
+            DeleteObjectsResult result = super.deleteObjects(new DeleteObjectsRequest(deleteObjectsRequest.getBucketName())
+                    .withQuiet(deleteObjectsRequest.getQuiet())
+                    .withKeys(keys));
+            if (!errors.isEmpty())
+                throw new MultiObjectDeleteException(errors, result.getDeletedObjects());
+            return result;
+        }
+
+        @Override
+        public ObjectListing listObjects(ListObjectsRequest listObjectsRequest) {
+            ObjectListing objectListing = super.listObjects(listObjectsRequest);
+            if (withoutNextMarker)
+                objectListing.setNextMarker(null);
+            return objectListing;
+        }
+
+        @Override
+        public CopyPartResult copyPart(CopyPartRequest request) {
+            copiedParts.add(request);
+            if (request.getPartNumber() == failingPart)
+                throw new SdkClientException("Copia della parte " + failingPart + " fallita");
+            // il contenuto reale è piccolo: ogni parte ne copia il primo byte
+            return super.copyPart(new CopyPartRequest()
+                    .withSourceBucketName(request.getSourceBucketName())
+                    .withSourceKey(request.getSourceKey())
+                    .withDestinationBucketName(request.getDestinationBucketName())
+                    .withDestinationKey(request.getDestinationKey())
+                    .withUploadId(request.getUploadId())
+                    .withPartNumber(request.getPartNumber())
+                    .withFirstByte(0L)
+                    .withLastByte(0L));
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            aborted.add(request.getKey());
+            super.abortMultipartUpload(request);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        properties = new S3StorageConfigurationProperties();
+        properties.setBucketName(BUCKET);
+        properties.setParallelism(4);
+        properties.setPartSize(S3MultipartUploader.MIN_PART_SIZE);
+        properties.setPartBuffers(2);
+        properties.setChildrenUserMetadata(true);
+        Map<String, String> metadataKeys = new HashMap<>();
+        metadataKeys.put(StoragePropertyNames.NAME.value(), "cmisname");
+        metadataKeys.put(StoragePropertyNames.TITLE.value(), "title");
+        properties.setMetadataKeys(metadataKeys);
+        amazonS3 = new FakeAmazonS3();
+        storageDriver = new S3StorageDriver(properties, amazonS3);
+    }
+
+    @Test
+    public void testUpdatePropertiesInPlace() throws IOException {
+        String key = createDocument("cartella", "documento.txt", "Titolo").getKey();
+        storageDriver.updateProperties(storageDriver.getObject(key), titolo("Nuovo titolo"));
+
+        ObjectMetadata objectMetadata = amazonS3.getObjectMetadata(BUCKET, key);
+        assertEquals("Nuovo titolo", objectMetadata.getUserMetaDataOf("title"));
+        assertEquals("documento.txt", objectMetadata.getUserMetaDataOf("cmisname"));
+        assertEquals("text/plain", objectMetadata.getContentType());
+        assertEquals(TESTO, read(key));
+        assertTrue(amazonS3.copiedParts.isEmpty());
+    }
+
+    @Test
+    public void testUpdatePropertiesRename() throws IOException {
+        String key = createDocument("cartella", "vecchio.txt", "Titolo").getKey();
+        Map<String, Object> metadata = titolo("Titolo");
+        metadata.put(StoragePropertyNames.NAME.value(), "nuovo.txt");
+        storageDriver.updateProperties(storageDriver.getObject(key), metadata);
+
+        assertFalse(amazonS3.doesObjectExist(BUCKET, key));
+        assertEquals(TESTO, read("cartella/nuovo.txt"));
+        assertEquals("nuovo.txt", amazonS3.getObjectMetadata(BUCKET, "cartella/nuovo.txt").getUserMetaDataOf("cmisname"));
+    }
+
+    @Test
+    public void testUpdatePropertiesMultipartCopy() {
+        String key = createDocument("cartella", "grande.bin", "Titolo").getKey();
+        amazonS3.grandi.add(key);
+        Map<String, Object> metadata = titolo("Nuovo titolo");
+        metadata.put(StoragePropertyNames.NAME.value(), "rinominato.bin");
+        storageDriver.updateProperties(storageDriver.getObject(key), metadata);
+
+        // oltre 5 GB la copia procede per parti contigue che coprono tutto l'oggetto
+        List<CopyPartRequest> parts = new ArrayList<>(amazonS3.copiedParts);
+        parts.sort(Comparator.comparingInt(CopyPartRequest::getPartNumber));
+        assertTrue(parts.size() > 1);
+        long nextByte = 0;
+        for (CopyPartRequest part : parts) {
+            assertEquals(key, part.getSourceKey());
+            assertEquals("cartella/rinominato.bin", part.getDestinationKey());
+            assertEquals(nextByte, part.getFirstByte().longValue());
+            nextByte = part.getLastByte() + 1;
+        }
+        assertEquals(GRANDE, nextByte);
+        assertEquals("Nuovo titolo", amazonS3.getObjectMetadata(BUCKET, "cartella/rinominato.bin").getUserMetaDataOf("title"));
+        assertFalse(amazonS3.doesObjectExist(BUCKET, key));
+        assertTrue(amazonS3.aborted.isEmpty());
+    }
+
+    @Test
+    public void testUpdatePropertiesMultipartCopyAbort() throws IOException {
+        String key = createDocument("cartella", "grande.bin", "Titolo").getKey();
+        amazonS3.grandi.add(key);
+        amazonS3.failingPart = 3;
+        Map<String, Object> metadata = titolo("Nuovo titolo");
+        metadata.put(StoragePropertyNames.NAME.value(), "rinominato.bin");
+        try {
+            storageDriver.updateProperties(storageDriver.getObject(key), metadata);
+            fail("la copia di una parte fallisce");
+        } catch (StorageException expected) {
+        }
+        // l'upload viene annullato e l'oggetto originale resta com'era
+        assertEquals(Collections.singletonList("cartella/rinominato.bin"), amazonS3.aborted);
+        assertFalse(amazonS3.doesObjectExist(BUCKET, "cartella/rinominato.bin"));
+        assertEquals(TESTO, read(key));
+        assertEquals("Titolo", amazonS3.getObjectMetadata(BUCKET, key).getUserMetaDataOf("title"));
+    }
+
+    @Test
+    public void testChildrenPages() {
+        for (int i = 0; i < 5; i++)
+            createDocument("pagine", "documento" + i + ".txt", "Titolo " + i);
+        assertEquals(Arrays.asList(
+                Arrays.asList("pagine/documento0.txt", "pagine/documento1.txt"),
+                Arrays.asList("pagine/documento2.txt", "pagine/documento3.txt"),
+                Collections.singletonList("pagine/documento4.txt")), pages(2));
+
+        // senza delimitatore S3 non restituisce NextMarker: il token è l'ultima chiave della pagina
+        amazonS3.withoutNextMarker = true;
+        assertEquals(Arrays.asList(
+                Arrays.asList("pagine/documento0.txt", "pagine/documento1.txt", "pagine/documento2.txt"),
+                Arrays.asList("pagine/documento3.txt", "pagine/documento4.txt")), pages(3));
+    }
+
+    @Test
+    public void testChildrenPageUserMetadata() {
+        for (int i = 0; i < 4; i++)
+            createDocument("metadati", "documento" + i + ".txt", "Titolo " + i);
+        // un oggetto cancellato tra la lista e la HEAD non compare nella pagina
+        amazonS3.scomparsi.add("metadati/documento2.txt");
+        amazonS3.heads.set(0);
+        StoragePage page = storageDriver.getChildrenPage("metadati/", 10, null);
+        assertEquals(4, amazonS3.heads.get());
+        assertFalse(page.hasNext());
+        assertEquals(Arrays.asList("metadati/documento0.txt", "metadati/documento1.txt", "metadati/documento3.txt"),
+                keys(page));
+        assertEquals("Titolo 3", page.getItems().get(2).getPropertyValue(StoragePropertyNames.TITLE.value()));
+
+        // senza metadati utente la pagina viene solo dalla lista
+        properties.setChildrenUserMetadata(false);
+        amazonS3.heads.set(0);
+        page = storageDriver.getChildrenPage("metadati/", 10, null);
+        assertEquals(0, amazonS3.heads.get());
+        assertEquals(4, page.getItems().size());
+        assertEquals(TESTO.length(), page.getItems().get(0).<Number>getPropertyValue(StoragePropertyNames.CONTENT_STREAM_LENGTH.value()).intValue());
+    }
+
+    @Test
+    public void testDeleteAll() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            ids.add("/" + createDocument("cancellazioni", "documento" + i + ".txt", "Titolo").getKey());
+        // la stessa chiave con e senza separatore iniziale resta una voce distinta del risultato
+        ids.add("cancellazioni/documento0.txt");
+        createDocument("cancellazioni", "protetto.txt", "Titolo");
+        amazonS3.protetti.add("cancellazioni/protetto.txt");
+        ids.add("/cancellazioni/protetto.txt");
+        ids.add("cancellazioni/inesistente.txt");
+
+        Map<String, Boolean> result = storageDriver.deleteAll(ids);
+
+        assertEquals(ids, new ArrayList<>(result.keySet()));
+        // S3 non segnala le chiavi inesistenti: risultano cancellate, a differenza di delete(String)
+        assertEquals(Arrays.asList(true, true, true, true, false, true), new ArrayList<>(result.values()));
+        assertFalse(storageDriver.delete("cancellazioni/inesistente.txt"));
+        assertFalse(amazonS3.doesObjectExist(BUCKET, "cancellazioni/documento1.txt"));
+        assertTrue(amazonS3.doesObjectExist(BUCKET, "cancellazioni/protetto.txt"));
+        assertEquals(Collections.singletonList(5), amazonS3.deleteBatches);
+    }
+
+    @Test
+    public void testDeleteAllBatches() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 2500; i++)
+            ids.add("lotti/documento" + i);
+        amazonS3.protetti.add("lotti/documento1500");
+        Map<String, Boolean> result = storageDriver.deleteAll(ids);
+        assertEquals(Arrays.asList(1000, 1000, 500), amazonS3.deleteBatches);
+        assertEquals(2500, result.size());
+        assertFalse(result.get("lotti/documento1500"));
+        assertEquals(2499, result.values().stream().filter(Boolean::booleanValue).count());
+    }
+
+    private List<List<String>> pages(int pageSize) {
+        List<List<String>> pages = new ArrayList<>();
+        String continuationToken = null;
+        do {
+            StoragePage page = storageDriver.getChildrenPage("pagine/", pageSize, continuationToken);
+            pages.add(keys(page));
+            continuationToken = page.getContinuationToken();
+        } while (continuationToken != null);
+        return pages;
+    }
+
+    private static List<String> keys(StoragePage page) {
+        List<String> keys = new ArrayList<>();
+        page.getItems().forEach(storageObject -> keys.add(storageObject.getKey()));
+        return keys;
+    }
+
+    private StorageObject createDocument(String path, String name, String title) {
+        Map<String, Object> metadata = titolo(title);
+        metadata.put(StoragePropertyNames.NAME.value(), name);
+        return storageDriver.createDocument(new ByteArrayInputStream(TESTO.getBytes()), "text/plain",
+                metadata, null, path, false);
+    }
+
+    private static Map<String, Object> titolo(String title) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(StoragePropertyNames.TITLE.value(), title);
+        return metadata;
+    }
+
+    private String read(String key) throws IOException {
+        try (InputStream inputStream = storageDriver.getInputStream(key)) {
+            return new String(inputStream.readAllBytes());
+        }
+    }
+}